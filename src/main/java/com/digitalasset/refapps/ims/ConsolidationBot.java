@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims;
+
+import actors.signingparty.SigningPartyRole;
+import bitcoin.types.Satoshi;
+import com.daml.ledger.javaapi.data.*;
+import com.daml.ledger.rxjava.components.helpers.CommandsAndPendingSet;
+import com.daml.ledger.rxjava.components.helpers.CreatedContract;
+import com.daml.ledger.rxjava.components.helpers.TemplateUtils;
+import com.digitalasset.refapps.ims.bitcoin.FeeEstimator;
+import com.digitalasset.refapps.ims.util.CommandsAndPendingSetBuilder;
+import com.digitalasset.refapps.ims.util.ContractIndex;
+import com.digitalasset.refapps.ims.util.LedgerDelta;
+import com.digitalasset.refapps.ims.util.UtxoReservations;
+import com.google.common.collect.Sets;
+import io.reactivex.Flowable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import transfer.transfer.UTXO;
+import transfer.transfer.UTXOData;
+
+/**
+ * Merges the smallest UTXOs of addresses holding more than the target number of UTXOs into a
+ * single output to the same address, so that transfers need fewer inputs. Runs at most once per
+ * interval, and only while the fee rate is at most the given maximum. Reserved UTXOs are left out.
+ */
+public class ConsolidationBot {
+  public final TransactionFilter transactionFilter;
+  private final CommandsAndPendingSetBuilder commandBuilder;
+  private static final Logger logger = LoggerFactory.getLogger(ConsolidationBot.class);
+  // outputs below this value are not relayed by bitcoind
+  private static final long DUST_THRESHOLD = 546;
+
+  private final FeeEstimator feeEstimator;
+  private final UtxoReservations utxoReservations;
+  private final Duration interval;
+  private final int targetUtxosPerAddress;
+  private final int maxInputs;
+  private final long maxFeeRate;
+  private Instant nextConsolidation = Instant.MIN;
+  private final ContractIndex<SigningPartyRole> signingPartyRoles =
+      new ContractIndex<>(SigningPartyRole.class);
+  private final ContractIndex<UTXO> utxos = new ContractIndex<>(UTXO.class);
+  private final ContractIndex.SecondaryIndex<String, UTXO> utxosByAddress =
+      utxos.addIndex(utxo -> utxo.utxoData.address.unpack);
+
+  public ConsolidationBot(
+      CommandsAndPendingSetBuilder.Factory commandBuilderFactory,
+      String partyName,
+      FeeEstimator feeEstimator,
+      UtxoReservations utxoReservations,
+      Duration interval,
+      int targetUtxosPerAddress,
+      int maxInputs,
+      long maxFeeRate) {
+    String workflowId =
+        "WORKFLOW-" + partyName + "-ConsolidationBot-" + UUID.randomUUID().toString();
+    this.commandBuilder = commandBuilderFactory.create(partyName, workflowId);
+    Filter messageFilter =
+        new InclusiveFilter(Sets.newHashSet(SigningPartyRole.TEMPLATE_ID, UTXO.TEMPLATE_ID));
+    this.transactionFilter = new FiltersByParty(Collections.singletonMap(partyName, messageFilter));
+    this.feeEstimator = feeEstimator;
+    this.utxoReservations = utxoReservations;
+    this.interval = interval;
+    this.targetUtxosPerAddress = targetUtxosPerAddress;
+    this.maxInputs = maxInputs;
+    this.maxFeeRate = maxFeeRate;
+  }
+
+  public Flowable<CommandsAndPendingSet> process(LedgerDelta delta) {
+    Map<String, SigningPartyRole> signingPartyRoleMap = signingPartyRoles.apply(delta).getAll();
+    utxos.apply(delta);
+    Instant now = Instant.now();
+    if (now.isBefore(nextConsolidation)) {
+      return Flowable.empty();
+    }
+    if (signingPartyRoleMap.isEmpty()) {
+      return Flowable.empty();
+    }
+    long feeRate = feeEstimator.getFeeRate();
+    if (feeRate > maxFeeRate) {
+      logger.debug("Fee rate {} sat/kvB is too high for consolidation.", feeRate);
+      return Flowable.empty();
+    }
+    nextConsolidation = now.plus(interval);
+    // the request is made through the role, so that the inputs are shown to the signing party
+    SigningPartyRole.ContractId signingPartyRoleCid =
+        new SigningPartyRole.ContractId(signingPartyRoleMap.keySet().iterator().next());
+
+    CommandsAndPendingSetBuilder.Builder builder = commandBuilder.newBuilder();
+    for (String address : utxosByAddress.keys()) {
+      Map<String, UTXO> addressUtxos = utxosByAddress.get(address);
+      if (addressUtxos.size() <= targetUtxosPerAddress) {
+        continue;
+      }
+      // the smallest unreserved UTXOs, merged into one
+      List<Map.Entry<String, UTXO>> candidates =
+          addressUtxos.entrySet().stream()
+              .filter(utxo -> !utxoReservations.isReserved(utxo.getKey()))
+              .sorted(Comparator.comparingLong(utxo -> utxo.getValue().utxoData.value.unpack))
+              .collect(Collectors.toList());
+      if (candidates.size() <= targetUtxosPerAddress) {
+        continue;
+      }
+      int inputCount = Math.min(candidates.size() - targetUtxosPerAddress + 1, maxInputs);
+      List<UTXOData> txInputs = new ArrayList<>();
+      List<UTXO.ContractId> txInputCids = new ArrayList<>();
+      long total = 0;
+      for (Map.Entry<String, UTXO> utxo : candidates.subList(0, inputCount)) {
+        txInputs.add(utxo.getValue().utxoData);
+        txInputCids.add(new UTXO.ContractId(utxo.getKey()));
+        total += utxo.getValue().utxoData.value.unpack;
+      }
+      long fee = feeEstimator.estimateFee(txInputs, 1);
+      if (total - fee < DUST_THRESHOLD) {
+        continue;
+      }
+      utxoReservations.reserve(
+          txInputCids.stream().map(cid -> cid.contractId).collect(Collectors.toList()));
+      logger.info("Consolidating {} UTXOs of {}.", inputCount, txInputs.get(0).address.unpack);
+      builder.addCommand(
+          signingPartyRoleCid.exerciseRequestConsolidation(
+              txInputs, txInputCids, txInputs.get(0).address, new Satoshi(fee)));
+    }
+    return builder.buildFlowable();
+  }
+
+  public static Function<CreatedContract, Template> getContractInfo =
+      TemplateUtils.contractTransformer(SigningPartyRole.class, UTXO.class);
+}
@@ -4,18 +4,29 @@
  */
 package com.digitalasset.refapps.ims;
 
-import bitcoin.types.BitcoinAddress;
+import com.codahale.metrics.CsvReporter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Slf4jReporter;
 import com.daml.ledger.rxjava.DamlLedgerClient;
-import com.daml.ledger.rxjava.components.Bot;
 import com.digitalasset.refapps.ims.bitcoin.BTCService;
-import com.digitalasset.refapps.ims.bitcoin.BTCUtility;
 import com.digitalasset.refapps.ims.bitcoin.BitcoinClient;
+import com.digitalasset.refapps.ims.bitcoin.BitcoinRpcTransport;
+import com.digitalasset.refapps.ims.bitcoin.BlockDataCache;
+import com.digitalasset.refapps.ims.bitcoin.ChangeAddressWallet;
+import com.digitalasset.refapps.ims.bitcoin.FeeEstimator;
+import com.digitalasset.refapps.ims.bitcoin.KeyStore;
+import com.digitalasset.refapps.ims.bitcoin.TransactionSigningEngine;
 import com.digitalasset.refapps.ims.util.CliOptions;
+import com.digitalasset.refapps.ims.util.CommandSubmitter;
 import com.digitalasset.refapps.ims.util.CommandsAndPendingSetBuilder;
-import fr.acinq.bitcoin.Crypto;
+import com.digitalasset.refapps.ims.util.LedgerSubscription;
+import com.digitalasset.refapps.ims.util.UtxoReservations;
+import com.google.common.collect.Sets;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.time.Duration;
-import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -51,68 +62,164 @@ public class Main {
 
     Duration mrt = Duration.ofSeconds(10);
     CommandsAndPendingSetBuilder.Factory commandBuilderFactory =
-        CommandsAndPendingSetBuilder.factory(APP_ID, mrt);
+        CommandsAndPendingSetBuilder.factory(
+            APP_ID,
+            mrt,
+            cliOptions.getSubmissionMaxCommands(),
+            cliOptions.getSubmissionMaxBytes());
+
+    MetricRegistry metricRegistry = new MetricRegistry();
+    startMetricsReporters(metricRegistry, cliOptions);
 
     // private keys for signing bots
-    Map<BitcoinAddress, Crypto.PrivateKey> addressToPrivateKeyMap =
-        BTCUtility.loadPrivateKeysFromFile(cliOptions.getKeyFile());
+    KeyStore keyStore =
+        KeyStore.open(
+            Paths.get(cliOptions.getKeyFile()),
+            Paths.get(cliOptions.getKeyIndex()),
+            cliOptions.getKeyCacheSize());
 
-    TransactionSignerBot transactionSignerBot =
-        new TransactionSignerBot(commandBuilderFactory, SIGNING_PARTY, addressToPrivateKeyMap);
+    logger.info("Using Bitcoin network at '{}'.", cliOptions.getBitcoinUrl());
+    BlockDataCache blockDataCache =
+        new BlockDataCache(cliOptions.getBitcoinCacheSize(), cliOptions.getBitcoinCacheDepth());
+    BitcoinRpcTransport bitcoinRpcTransport =
+        new BitcoinRpcTransport(
+            cliOptions.getBitcoinUrl(),
+            cliOptions.getBitcoinUserName(),
+            cliOptions.getBitcoinPassword(),
+            cliOptions.getBitcoinConnectTimeout(),
+            cliOptions.getBitcoinSocketTimeout(),
+            cliOptions.getBitcoinMaxConnections());
+    BitcoinClient bitcoinClient =
+        new BitcoinClient(
+            bitcoinRpcTransport,
+            cliOptions.getBitcoinBatchSize(),
+            blockDataCache,
+            cliOptions.getBitcoinConcurrency(),
+            metricRegistry);
+
+    ChangeAddressWallet changeAddressWallet =
+        ChangeAddressWallet.open(
+            keyStore,
+            bitcoinClient,
+            cliOptions.getChangeSeedFile(),
+            cliOptions.getChangeChunkSize(),
+            cliOptions.getChangeAddressType(),
+            cliOptions.getBitcoinNetwork());
+
+    TransactionSigningEngine signingEngine =
+        new TransactionSigningEngine(
+            changeAddressWallet, cliOptions.getSigningThreads(), metricRegistry);
     OwnedAddressRegistrarBot ownedAddressRegistrarBot =
-        new OwnedAddressRegistrarBot(commandBuilderFactory, SIGNING_PARTY, addressToPrivateKeyMap);
+        new OwnedAddressRegistrarBot(
+            commandBuilderFactory, SIGNING_PARTY, keyStore, changeAddressWallet);
     TransferRequestValidatorBot transferRequestValidatorBot =
         new TransferRequestValidatorBot(commandBuilderFactory, OPERATOR);
 
+    BTCService btcService =
+        new BTCService(
+            bitcoinClient,
+            cliOptions.getBitcoinAddressesPerScan(),
+            cliOptions.getBitcoinFullScanInterval());
+    FeeEstimator feeEstimator =
+        new FeeEstimator(
+            bitcoinClient,
+            cliOptions.getFeeConfTarget(),
+            Duration.ofSeconds(cliOptions.getFeeCacheInterval()));
+    UtxoReservations utxoReservations =
+        new UtxoReservations(Duration.ofSeconds(cliOptions.getUtxoReservationTimeout()));
     SubmitForSigningBot submitForSigningBot =
-        new SubmitForSigningBot(commandBuilderFactory, OPERATOR);
-
-    logger.info("Using Bitcoin network at '{}'.", cliOptions.getBitcoinUrl());
-    BitcoinClient bitcoinClient =
-        new BitcoinClient(
-            cliOptions.getBitcoinUrl(),
-            cliOptions.getBitcoinUserName(),
-            cliOptions.getBitcoinPassword());
-    BTCService btcService = new BTCService(bitcoinClient);
+        new SubmitForSigningBot(commandBuilderFactory, OPERATOR, feeEstimator, utxoReservations);
+    TransactionSignerBot transactionSignerBot =
+        new TransactionSignerBot(
+            commandBuilderFactory,
+            SIGNING_PARTY,
+            signingEngine,
+            changeAddressWallet,
+            changeAddressWallet,
+            feeEstimator,
+            Duration.ofMillis(cliOptions.getTransferBatchWindow()),
+            cliOptions.getTransferBatchSize());
     UTXOUpdaterBot utxoUpdaterBot = new UTXOUpdaterBot(commandBuilderFactory, OPERATOR, btcService);
     RawTxPusherBot rawTxPusherBot = new RawTxPusherBot(commandBuilderFactory, OPERATOR, btcService);
 
-    Bot.wire(
-        APP_ID,
-        client,
+    CommandSubmitter commandSubmitter =
+        new CommandSubmitter(
+            client,
+            APP_ID,
+            Sets.newHashSet(OPERATOR, SIGNING_PARTY),
+            cliOptions.getSubmissionWindow(),
+            Duration.ofSeconds(cliOptions.getCompletionTimeout()),
+            metricRegistry);
+    commandSubmitter.start();
+    // one ledger subscription per party, shared by its bots
+    LedgerSubscription operatorLedger = new LedgerSubscription(client, OPERATOR, commandSubmitter);
+    LedgerSubscription signingPartyLedger =
+        new LedgerSubscription(client, SIGNING_PARTY, commandSubmitter);
+    signingPartyLedger.register(
         transactionSignerBot.transactionFilter,
         transactionSignerBot::process,
         TransactionSignerBot.getContractInfo);
-    Bot.wire(
-        APP_ID,
-        client,
+    signingPartyLedger.register(
         ownedAddressRegistrarBot.transactionFilter,
         ownedAddressRegistrarBot::process,
         OwnedAddressRegistrarBot.getContractInfo);
-    Bot.wire(
-        APP_ID,
-        client,
+    operatorLedger.register(
         transferRequestValidatorBot.transactionFilter,
         transferRequestValidatorBot::process,
         TransferRequestValidatorBot.getContractInfo);
-    Bot.wire(
-        APP_ID,
-        client,
+    operatorLedger.register(
         submitForSigningBot.transactionFilter,
         submitForSigningBot::process,
         SubmitForSigningBot.getContractInfo);
-    Bot.wire(
-        APP_ID,
-        client,
-        utxoUpdaterBot.transactionFilter,
-        utxoUpdaterBot::process,
-        UTXOUpdaterBot.getContractInfo);
-    Bot.wire(
-        APP_ID,
-        client,
-        rawTxPusherBot.transactionFilter,
-        rawTxPusherBot::process,
-        RawTxPusherBot.getContractInfo);
+    operatorLedger.register(
+        utxoUpdaterBot.transactionFilter, utxoUpdaterBot::process, UTXOUpdaterBot.getContractInfo);
+    operatorLedger.register(
+        rawTxPusherBot.transactionFilter, rawTxPusherBot::process, RawTxPusherBot.getContractInfo);
+    if (cliOptions.getConsolidationInterval() > 0) {
+      ConsolidationBot consolidationBot =
+          new ConsolidationBot(
+              commandBuilderFactory,
+              OPERATOR,
+              feeEstimator,
+              utxoReservations,
+              Duration.ofSeconds(cliOptions.getConsolidationInterval()),
+              cliOptions.getConsolidationTarget(),
+              cliOptions.getConsolidationMaxInputs(),
+              cliOptions.getConsolidationMaxFeeRate());
+      operatorLedger.register(
+          consolidationBot.transactionFilter,
+          consolidationBot::process,
+          ConsolidationBot.getContractInfo);
+    }
+    operatorLedger.start();
+    signingPartyLedger.start();
+  }
+
+  private static void startMetricsReporters(MetricRegistry metricRegistry, CliOptions cliOptions) {
+    int interval = cliOptions.getMetricsInterval();
+    if (interval <= 0) {
+      return;
+    }
+    Slf4jReporter.forRegistry(metricRegistry)
+        .outputTo(LoggerFactory.getLogger("metrics"))
+        .convertRatesTo(TimeUnit.SECONDS)
+        .convertDurationsTo(TimeUnit.MILLISECONDS)
+        .build()
+        .start(interval, TimeUnit.SECONDS);
+    cliOptions
+        .getMetricsDir()
+        .ifPresent(
+            dir -> {
+              File directory = new File(dir);
+              if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IllegalArgumentException("Cannot create metrics directory " + dir);
+              }
+              CsvReporter.forRegistry(metricRegistry)
+                  .convertRatesTo(TimeUnit.SECONDS)
+                  .convertDurationsTo(TimeUnit.MILLISECONDS)
+                  .build(directory)
+                  .start(interval, TimeUnit.SECONDS);
+            });
   }
 
   public static void waitForSandbox(String host, int port, DamlLedgerClient client) {
@@ -4,19 +4,21 @@
  */
 package com.digitalasset.refapps.ims;
 
-import static com.digitalasset.refapps.ims.util.TemplateManager.filterTemplates;
-
 import actors.signingparty.SigningPartyRole;
 import bitcoin.types.BitcoinAddress;
 import com.daml.ledger.javaapi.data.*;
-import com.daml.ledger.rxjava.components.LedgerViewFlowable;
 import com.daml.ledger.rxjava.components.helpers.CommandsAndPendingSet;
 import com.daml.ledger.rxjava.components.helpers.CreatedContract;
 import com.daml.ledger.rxjava.components.helpers.TemplateUtils;
+import com.digitalasset.refapps.ims.bitcoin.ChangeAddressWallet;
+import com.digitalasset.refapps.ims.bitcoin.KeyStore;
 import com.digitalasset.refapps.ims.util.CommandsAndPendingSetBuilder;
+import com.digitalasset.refapps.ims.util.ContractIndex;
+import com.digitalasset.refapps.ims.util.LedgerDelta;
 import com.google.common.collect.Sets;
-import fr.acinq.bitcoin.Crypto;
 import io.reactivex.Flowable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
 import java.util.function.Function;
 import org.pcollections.PMap;
@@ -29,44 +31,76 @@ public class OwnedAddressRegistrarBot {
   private final CommandsAndPendingSetBuilder commandBuilder;
   private static final Logger logger = LoggerFactory.getLogger(OwnedAddressRegistrarBot.class);
 
-  private Map<BitcoinAddress, Crypto.PrivateKey> addressToPrivateKeyMap;
+  private KeyStore keyStore;
+  private ChangeAddressWallet changeAddressWallet;
   private boolean isFirstProcess;
+  private final ContractIndex<SigningPartyRole> signingPartyRoles =
+      new ContractIndex<>(SigningPartyRole.class);
+  private final ContractIndex<OwnedAddress> ownedAddresses =
+      new ContractIndex<>(OwnedAddress.class);
 
   public OwnedAddressRegistrarBot(
       CommandsAndPendingSetBuilder.Factory commandBuilderFactory,
       String partyName,
-      Map<BitcoinAddress, Crypto.PrivateKey> privateKeyMap) {
+      KeyStore keyStore,
+      ChangeAddressWallet changeAddressWallet) {
 
     String workflowId =
         "WORKFLOW-" + partyName + "-OwnedAddressRegistrarBot-" + UUID.randomUUID().toString();
     commandBuilder = commandBuilderFactory.create(partyName, workflowId);
 
-    Filter messageFilter = new InclusiveFilter(Sets.newHashSet(SigningPartyRole.TEMPLATE_ID));
+    Filter messageFilter =
+        new InclusiveFilter(
+            Sets.newHashSet(SigningPartyRole.TEMPLATE_ID, OwnedAddress.TEMPLATE_ID));
 
     this.transactionFilter = new FiltersByParty(Collections.singletonMap(partyName, messageFilter));
-    this.addressToPrivateKeyMap = privateKeyMap;
+    this.keyStore = keyStore;
+    this.changeAddressWallet = changeAddressWallet;
     this.isFirstProcess = true;
   }
 
-  public Flowable<CommandsAndPendingSet> process(
-      LedgerViewFlowable.LedgerView<Template> ledgerView) {
+  public Flowable<CommandsAndPendingSet> process(LedgerDelta delta) {
     CommandsAndPendingSetBuilder.Builder builder = commandBuilder.newBuilder();
 
+    Map<String, SigningPartyRole> signingPartyRoleMap = signingPartyRoles.apply(delta).getAll();
+    ownedAddresses.apply(delta);
+    logger.debug(String.format("found %d signingPartyContracts", signingPartyRoleMap.size()));
+    if (signingPartyRoleMap.isEmpty()) {
+      return Flowable.empty();
+    }
+    PMap.Entry<String, SigningPartyRole> kv = signingPartyRoleMap.entrySet().iterator().next();
+    SigningPartyRole.ContractId signingPartyCid = new SigningPartyRole.ContractId(kv.getKey());
+
     // create own public addressByte contracts
     if (this.isFirstProcess) {
-      Map<String, SigningPartyRole> signingPartyRoleMap =
-          filterTemplates(
-              SigningPartyRole.class, ledgerView.getContracts(SigningPartyRole.TEMPLATE_ID));
-      logger.debug(String.format("found %d signingPartyContracts", signingPartyRoleMap.size()));
-      PMap.Entry<String, SigningPartyRole> kv = signingPartyRoleMap.entrySet().iterator().next();
-      SigningPartyRole.ContractId signingPartyCid = new SigningPartyRole.ContractId(kv.getKey());
-      for (BitcoinAddress address : this.addressToPrivateKeyMap.keySet()) {
+      for (BitcoinAddress address : this.keyStore.getAddresses()) {
         Command command = signingPartyCid.exerciseRegisterOwnedAddress(address);
         builder.addCommand(command);
       }
       this.isFirstProcess = false;
     }
 
+    // register the change addresses in chunks, ahead of their use
+    Set<String> registered = new HashSet<>();
+    Set<String> unused = new HashSet<>();
+    ownedAddresses
+        .getAll()
+        .values()
+        .forEach(
+            ownedAddress -> {
+              registered.add(ownedAddress.address.unpack);
+              if (ownedAddress.numTxs == 0 && ownedAddress.balance.unpack == 0) {
+                unused.add(ownedAddress.address.unpack);
+              }
+            });
+    try {
+      for (BitcoinAddress address : changeAddressWallet.refill(registered, unused)) {
+        builder.addCommand(signingPartyCid.exerciseRegisterOwnedAddress(address));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
     return builder.buildFlowable();
   }
 
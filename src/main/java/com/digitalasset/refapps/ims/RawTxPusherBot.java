@@ -4,28 +4,48 @@
  */
 package com.digitalasset.refapps.ims;
 
-import static com.digitalasset.refapps.ims.util.TemplateManager.filterTemplates;
-
 import com.daml.ledger.javaapi.data.*;
-import com.daml.ledger.rxjava.components.LedgerViewFlowable;
 import com.daml.ledger.rxjava.components.helpers.CommandsAndPendingSet;
 import com.daml.ledger.rxjava.components.helpers.CreatedContract;
 import com.daml.ledger.rxjava.components.helpers.TemplateUtils;
 import com.digitalasset.refapps.ims.bitcoin.BTCService;
 import com.digitalasset.refapps.ims.bitcoin.TransactionResponse;
 import com.digitalasset.refapps.ims.util.CommandsAndPendingSetBuilder;
+import com.digitalasset.refapps.ims.util.ContractIndex;
+import com.digitalasset.refapps.ims.util.InFlightContracts;
+import com.digitalasset.refapps.ims.util.LedgerDelta;
 import com.digitalasset.refapps.ims.util.Utility;
 import com.google.common.collect.Sets;
 import io.reactivex.Flowable;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Function;
-import java.util.stream.Collectors;
+import transfer.consolidation.SignedConsolidation;
 import transfer.transfer.PendingTransfer;
+import transfer.transfer.SignedTransfer;
 
+/**
+ * Pushes the transactions of confirmed transfers and signed consolidations to the Bitcoin network.
+ * A transaction paying a batch of transfers is only pushed once every transfer of the batch has
+ * been confirmed, i.e. none of them is still a SignedTransfer.
+ */
 public class RawTxPusherBot {
   public final TransactionFilter transactionFilter;
   private final CommandsAndPendingSetBuilder commandBuilder;
+  private static final Duration IN_FLIGHT_TIMEOUT = Duration.ofSeconds(30);
   private BTCService btcService;
+  private final InFlightContracts inFlightTransfers = new InFlightContracts(IN_FLIGHT_TIMEOUT);
+  private final InFlightContracts inFlightConsolidations = new InFlightContracts(IN_FLIGHT_TIMEOUT);
+  private final ContractIndex<PendingTransfer> pendingTransfers =
+      new ContractIndex<>(PendingTransfer.class);
+  private final ContractIndex<SignedConsolidation> signedConsolidations =
+      new ContractIndex<>(SignedConsolidation.class);
+  private final ContractIndex<SignedTransfer> signedTransfers =
+      new ContractIndex<>(SignedTransfer.class);
+  // the unconfirmed transfers by their transaction
+  private final ContractIndex.SecondaryIndex<String, SignedTransfer> unconfirmedByRawTx =
+      signedTransfers.addIndex(signedTransfer -> Utility.unpack(signedTransfer.rawTx));
 
   public RawTxPusherBot(
       CommandsAndPendingSetBuilder.Factory commandBuilderFactory,
@@ -34,36 +54,101 @@ public class RawTxPusherBot {
     this.btcService = btcService;
     String workflowId = "WORKFLOW-" + partyName + "-RawTxPusherBot-" + UUID.randomUUID().toString();
     commandBuilder = commandBuilderFactory.create(partyName, workflowId);
-    Filter messageFilter = new InclusiveFilter(Sets.newHashSet(PendingTransfer.TEMPLATE_ID));
+    Filter messageFilter =
+        new InclusiveFilter(
+            Sets.newHashSet(
+                PendingTransfer.TEMPLATE_ID,
+                SignedTransfer.TEMPLATE_ID,
+                SignedConsolidation.TEMPLATE_ID));
     this.transactionFilter = new FiltersByParty(Collections.singletonMap(partyName, messageFilter));
   }
 
-  public Flowable<CommandsAndPendingSet> process(
-      LedgerViewFlowable.LedgerView<Template> ledgerView) {
-    CommandsAndPendingSetBuilder.Builder builder = commandBuilder.newBuilder();
+  public Flowable<CommandsAndPendingSet> process(LedgerDelta delta) {
+    pendingTransfers.apply(delta);
+    signedTransfers.apply(delta);
+    signedConsolidations.apply(delta);
+    return Flowable.merge(pushTransfers(), pushConsolidations());
+  }
+
+  private Flowable<CommandsAndPendingSet> pushTransfers() {
+    Map<String, PendingTransfer> PendingTransferMap = pendingTransfers.getAll();
+    // transactions that pay transfers which are not confirmed yet are held back
+    Set<String> confirmed = new LinkedHashSet<>();
+    PendingTransferMap.forEach(
+        (cid, pendingTransfer) -> {
+          if (unconfirmedByRawTx.get(Utility.unpack(pendingTransfer.rawTx)).isEmpty()) {
+            confirmed.add(cid);
+          }
+        });
+    // transfers that are still being pushed are not pending in the ledger view yet
+    Set<String> toSendTxs = inFlightTransfers.claim(confirmed);
+    if (toSendTxs.isEmpty()) {
+      return Flowable.empty();
+    }
 
-    Map<String, PendingTransfer> PendingTransferMap =
-        filterTemplates(
-            PendingTransfer.class, ledgerView.getContracts(PendingTransfer.TEMPLATE_ID));
+    // the transactions are pushed concurrently on the Bitcoin client's threads, once for all
+    // transfers paid by the same transaction
+    Map<String, CompletableFuture<TransactionResponse>> pushes = new HashMap<>();
+    Map<String, CompletableFuture<TransactionResponse>> responses = new LinkedHashMap<>();
+    for (String cid : toSendTxs) {
+      PendingTransfer signedTx = PendingTransferMap.get(cid);
+      responses.put(
+          cid,
+          pushes.computeIfAbsent(Utility.unpack(signedTx.rawTx), btcService::pushTransactionAsync));
+    }
+    CompletableFuture<List<CommandsAndPendingSet>> commands =
+        CompletableFuture.allOf(responses.values().toArray(new CompletableFuture[0]))
+            .thenApply(
+                done -> {
+                  CommandsAndPendingSetBuilder.Builder builder = commandBuilder.newBuilder();
+                  responses.forEach(
+                      (cid, response) -> builder.addCommand(toCommand(cid, response.join())));
+                  return builder.build();
+                });
+    return inFlightTransfers.toFlowable(toSendTxs, commands);
+  }
 
-    List<Map.Entry<String, PendingTransfer>> toSendTxs =
-        PendingTransferMap.entrySet().stream().collect(Collectors.toList());
+  private Flowable<CommandsAndPendingSet> pushConsolidations() {
+    Map<String, SignedConsolidation> consolidationMap = signedConsolidations.getAll();
+    Set<String> toSendTxs = inFlightConsolidations.claim(consolidationMap.keySet());
+    if (toSendTxs.isEmpty()) {
+      return Flowable.empty();
+    }
 
-    for (Map.Entry<String, PendingTransfer> tx : toSendTxs) {
-      PendingTransfer.ContractId pendingTransferCid = new PendingTransfer.ContractId(tx.getKey());
-      PendingTransfer signedTx = tx.getValue();
-      TransactionResponse response;
-      response = btcService.pushTransaction(Utility.unpack(signedTx.rawTx));
-      Command command =
-          response.getStatus() == TransactionResponse.Status.FAILEDTOTRANSMIT
-              ? pendingTransferCid.exerciseFail(response.getResponseMessage())
-              : pendingTransferCid.exerciseTransmit(response.getResponseMessage());
-      builder.addCommand(command);
+    Map<String, CompletableFuture<TransactionResponse>> responses = new LinkedHashMap<>();
+    for (String cid : toSendTxs) {
+      responses.put(
+          cid,
+          btcService.pushTransactionAsync(Utility.unpack(consolidationMap.get(cid).rawTx)));
     }
+    CompletableFuture<List<CommandsAndPendingSet>> commands =
+        CompletableFuture.allOf(responses.values().toArray(new CompletableFuture[0]))
+            .thenApply(
+                done -> {
+                  CommandsAndPendingSetBuilder.Builder builder = commandBuilder.newBuilder();
+                  responses.forEach(
+                      (cid, response) ->
+                          builder.addCommand(toConsolidationCommand(cid, response.join())));
+                  return builder.build();
+                });
+    return inFlightConsolidations.toFlowable(toSendTxs, commands);
+  }
+
+  private static Command toConsolidationCommand(String cid, TransactionResponse response) {
+    SignedConsolidation.ContractId consolidationCid = new SignedConsolidation.ContractId(cid);
+    return response.getStatus() == TransactionResponse.Status.FAILEDTOTRANSMIT
+        ? consolidationCid.exerciseFailConsolidation(response.getResponseMessage())
+        : consolidationCid.exerciseTransmitConsolidation();
+  }
 
-    return builder.buildFlowable();
+  private static Command toCommand(String cid, TransactionResponse response) {
+    PendingTransfer.ContractId pendingTransferCid = new PendingTransfer.ContractId(cid);
+    return response.getStatus() == TransactionResponse.Status.FAILEDTOTRANSMIT
+        ? pendingTransferCid.exerciseFail(response.getResponseMessage())
+        : pendingTransferCid.exerciseTransmit(response.getResponseMessage());
   }
 
   public static Function<CreatedContract, Template> getContractInfo =
-      TemplateUtils.contractTransformer(PendingTransfer.class);
+      TemplateUtils.contractTransformer(
+          PendingTransfer.class, SignedTransfer.class, SignedConsolidation.class);
 }
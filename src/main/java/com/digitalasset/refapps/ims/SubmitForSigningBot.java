@@ -4,83 +4,236 @@
  */
 package com.digitalasset.refapps.ims;
 
-import static com.digitalasset.refapps.ims.util.TemplateManager.filterTemplates;
-
 import actors.signingparty.SigningPartyRole;
 import bitcoin.types.Satoshi;
 import com.daml.ledger.javaapi.data.*;
-import com.daml.ledger.rxjava.components.LedgerViewFlowable;
 import com.daml.ledger.rxjava.components.helpers.CommandsAndPendingSet;
 import com.daml.ledger.rxjava.components.helpers.CreatedContract;
 import com.daml.ledger.rxjava.components.helpers.TemplateUtils;
+import com.digitalasset.refapps.ims.bitcoin.AddressType;
+import com.digitalasset.refapps.ims.bitcoin.CoinSelector;
+import com.digitalasset.refapps.ims.bitcoin.FeeEstimator;
 import com.digitalasset.refapps.ims.util.CommandsAndPendingSetBuilder;
+import com.digitalasset.refapps.ims.util.ContractIndex;
+import com.digitalasset.refapps.ims.util.LedgerDelta;
+import com.digitalasset.refapps.ims.util.UtxoReservations;
 import com.google.common.collect.Sets;
 import io.reactivex.Flowable;
 import java.util.*;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import transfer.consolidation.ConsolidationRequest;
+import transfer.consolidation.SignedConsolidation;
 import transfer.request.ValidatedTransferRequest;
+import transfer.transfer.NewTransfer;
+import transfer.transfer.PendingTransfer;
+import transfer.transfer.SignedTransfer;
 import transfer.transfer.UTXO;
+import transfer.transfer.UTXOData;
 
 public class SubmitForSigningBot {
   public final TransactionFilter transactionFilter;
   private final CommandsAndPendingSetBuilder commandBuilder;
-
-  private static final long BTC_FEE = 20000;
+  private static final Logger logger = LoggerFactory.getLogger(SubmitForSigningBot.class);
+  private final FeeEstimator feeEstimator;
+  private final CoinSelector coinSelector;
+  private final UtxoReservations utxoReservations;
+  private final ContractIndex<ValidatedTransferRequest> transferRequests =
+      new ContractIndex<>(ValidatedTransferRequest.class);
+  private final ContractIndex<SigningPartyRole> signingPartyRoles =
+      new ContractIndex<>(SigningPartyRole.class);
+  private final ContractIndex<UTXO> utxos = new ContractIndex<>(UTXO.class);
+  // the inputs of the transfers and consolidations on the ledger, by contract id
+  private final Map<String, List<String>> inputsByTransfer = new HashMap<>();
+  // the coins of the wallet, split into the ones not reserved for a transfer yet and the others;
+  // both are kept up to date from the ledger deltas instead of being rebuilt from all UTXOs
+  private final Map<String, Long> availableCoins = new HashMap<>();
+  private final Set<String> witnessCoins = new HashSet<>();
+  private final Set<String> reservedCoins = new HashSet<>();
+  private long walletValue;
 
   public SubmitForSigningBot(
-      CommandsAndPendingSetBuilder.Factory commandBuilderFactory, String partyName) {
+      CommandsAndPendingSetBuilder.Factory commandBuilderFactory,
+      String partyName,
+      FeeEstimator feeEstimator,
+      UtxoReservations utxoReservations) {
     String workflowId =
         "WORKFLOW-" + partyName + "-SubmitForSigningBot-" + UUID.randomUUID().toString();
     this.commandBuilder = commandBuilderFactory.create(partyName, workflowId);
+    this.feeEstimator = feeEstimator;
+    this.coinSelector = new CoinSelector(feeEstimator);
+    this.utxoReservations = utxoReservations;
     Filter messageFilter =
         new InclusiveFilter(
             Sets.newHashSet(
                 ValidatedTransferRequest.TEMPLATE_ID,
                 SigningPartyRole.TEMPLATE_ID,
-                UTXO.TEMPLATE_ID));
+                UTXO.TEMPLATE_ID,
+                NewTransfer.TEMPLATE_ID,
+                SignedTransfer.TEMPLATE_ID,
+                PendingTransfer.TEMPLATE_ID,
+                ConsolidationRequest.TEMPLATE_ID,
+                SignedConsolidation.TEMPLATE_ID));
     this.transactionFilter = new FiltersByParty(Collections.singletonMap(partyName, messageFilter));
   }
 
-  public Flowable<CommandsAndPendingSet> process(
-      LedgerViewFlowable.LedgerView<Template> ledgerView) {
+  public Flowable<CommandsAndPendingSet> process(LedgerDelta delta) {
     CommandsAndPendingSetBuilder.Builder builder = commandBuilder.newBuilder();
 
     Map<String, ValidatedTransferRequest> transferRequestMap =
-        filterTemplates(
-            ValidatedTransferRequest.class,
-            ledgerView.getContracts(ValidatedTransferRequest.TEMPLATE_ID));
-
-    Map<String, UTXO> utxoMap =
-        filterTemplates(UTXO.class, ledgerView.getContracts(UTXO.TEMPLATE_ID));
-    List<UTXO.ContractId> utxoCidsToUse =
-        utxoMap.entrySet().stream()
-            .map(entry -> new UTXO.ContractId(entry.getKey()))
-            .collect(Collectors.toList());
+        transferRequests.apply(delta).getAll();
+    signingPartyRoles.apply(delta);
 
-    SigningPartyRole.ContractId signingPartyRoleCid = getSigningParty(ledgerView);
+    applyTransferInputs(delta);
+    applyCoins(delta);
+    if (transferRequestMap.isEmpty()) {
+      return Flowable.empty();
+    }
+    updateReservedCoins();
+
+    SigningPartyRole.ContractId signingPartyRoleCid = getSigningParty();
 
     for (Map.Entry<String, ValidatedTransferRequest> keyValue : transferRequestMap.entrySet()) {
       ValidatedTransferRequest.ContractId transferRequestCid =
           new ValidatedTransferRequest.ContractId(keyValue.getKey());
+      long amount = keyValue.getValue().transferDetails.amount.unpack;
+      Optional<CoinSelector.Selection> selection =
+          coinSelector.select(availableCoins, witnessCoins, amount);
+      List<String> inputCids;
+      long fee;
+      if (selection.isPresent()) {
+        inputCids = selection.get().getCoins();
+        fee = selection.get().getFee();
+        inputCids.forEach(this::reserveCoin);
+        utxoReservations.reserve(inputCids);
+      } else if (!reservedCoins.isEmpty() && walletValue >= amount) {
+        // the coins not reserved by other transfers do not suffice but the whole wallet could, it
+        // is tried again once the other transfers are transmitted or failed
+        logger.debug("Not enough unreserved coins for {}.", keyValue.getKey());
+        continue;
+      } else {
+        // not even the whole wallet suffices, PrepareToTransfer records the request as insufficient
+        inputCids = new ArrayList<>(availableCoins.keySet());
+        fee =
+            feeEstimator.estimateFee(
+                availableCoins.size() - witnessCoins.size(), witnessCoins.size(), 2);
+      }
       Command requestCommand =
           transferRequestCid.exercisePrepareToTransfer(
-              signingPartyRoleCid, new Satoshi(BTC_FEE), utxoCidsToUse);
+              signingPartyRoleCid,
+              new Satoshi(fee),
+              inputCids.stream().map(UTXO.ContractId::new).collect(Collectors.toList()));
       builder.addCommand(requestCommand);
     }
 
     return builder.buildFlowable();
   }
 
+  // The inputs of the transfers and consolidations that are not transmitted or failed yet are
+  // reserved.
+  private void applyTransferInputs(LedgerDelta delta) {
+    for (String cid : delta.getArchived()) {
+      List<String> inputCids = inputsByTransfer.remove(cid);
+      if (inputCids != null) {
+        utxoReservations.removeUsedByTransfer(inputCids);
+      }
+    }
+    delta
+        .getCreated()
+        .forEach(
+            (cid, contract) -> {
+              List<UTXO.ContractId> inputs = getTxInputUtxoCids(contract);
+              if (!inputs.isEmpty()) {
+                List<String> inputCids =
+                    inputs.stream().map(input -> input.contractId).collect(Collectors.toList());
+                inputsByTransfer.put(cid, inputCids);
+                utxoReservations.addUsedByTransfer(inputCids);
+              }
+            });
+  }
+
+  private static List<UTXO.ContractId> getTxInputUtxoCids(Template contract) {
+    if (contract instanceof NewTransfer) {
+      return ((NewTransfer) contract).txInputUtxoCids;
+    } else if (contract instanceof SignedTransfer) {
+      return ((SignedTransfer) contract).txInputUtxoCids;
+    } else if (contract instanceof PendingTransfer) {
+      return ((PendingTransfer) contract).txInputUtxoCids;
+    } else if (contract instanceof ConsolidationRequest) {
+      return ((ConsolidationRequest) contract).txInputUtxoCids;
+    } else if (contract instanceof SignedConsolidation) {
+      return ((SignedConsolidation) contract).txInputUtxoCids;
+    }
+    return Collections.emptyList();
+  }
+
+  // New coins are available until updateReservedCoins finds them reserved.
+  private void applyCoins(LedgerDelta delta) {
+    Map<String, UTXO> utxoMap = utxos.getAll();
+    for (String cid : delta.getArchived()) {
+      UTXO utxo = utxoMap.get(cid);
+      if (utxo != null) {
+        walletValue -= utxo.utxoData.value.unpack;
+        availableCoins.remove(cid);
+        witnessCoins.remove(cid);
+        reservedCoins.remove(cid);
+      }
+    }
+    utxos.apply(delta);
+    delta
+        .getCreated(UTXO.class)
+        .forEach(
+            (cid, utxo) -> {
+              walletValue += utxo.utxoData.value.unpack;
+              releaseCoin(cid);
+            });
+  }
+
+  // Coins are also reserved by other bots and released when a reservation times out, so the
+  // reserved coins are checked again. Only they are visited, not the whole wallet.
+  private void updateReservedCoins() {
+    for (String cid : utxoReservations.getReserved()) {
+      if (availableCoins.containsKey(cid)) {
+        reserveCoin(cid);
+      }
+    }
+    List<String> released =
+        reservedCoins.stream()
+            .filter(cid -> !utxoReservations.isReserved(cid))
+            .collect(Collectors.toList());
+    released.forEach(this::releaseCoin);
+  }
+
+  private void reserveCoin(String cid) {
+    availableCoins.remove(cid);
+    witnessCoins.remove(cid);
+    reservedCoins.add(cid);
+  }
+
+  private void releaseCoin(String cid) {
+    UTXOData utxoData = utxos.getAll().get(cid).utxoData;
+    reservedCoins.remove(cid);
+    availableCoins.put(cid, utxoData.value.unpack);
+    if (AddressType.ofScript(utxoData.sigScript.unpack) == AddressType.P2WPKH) {
+      witnessCoins.add(cid);
+    }
+  }
+
   public static Function<CreatedContract, Template> getContractInfo =
       TemplateUtils.contractTransformer(
-          ValidatedTransferRequest.class, SigningPartyRole.class, UTXO.class);
+          ValidatedTransferRequest.class,
+          SigningPartyRole.class,
+          UTXO.class,
+          NewTransfer.class,
+          SignedTransfer.class,
+          PendingTransfer.class,
+          ConsolidationRequest.class,
+          SignedConsolidation.class);
 
-  private static SigningPartyRole.ContractId getSigningParty(
-      LedgerViewFlowable.LedgerView<Template> ledgerView) {
-    Map<String, SigningPartyRole> signingPartyRoleMap =
-        filterTemplates(
-            SigningPartyRole.class, ledgerView.getContracts(SigningPartyRole.TEMPLATE_ID));
+  private SigningPartyRole.ContractId getSigningParty() {
+    Map<String, SigningPartyRole> signingPartyRoleMap = signingPartyRoles.getAll();
     String signingPartyRoleKey = signingPartyRoleMap.entrySet().iterator().next().getKey();
     return new SigningPartyRole.ContractId(signingPartyRoleKey);
   }
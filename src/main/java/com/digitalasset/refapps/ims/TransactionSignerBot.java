@@ -4,37 +4,80 @@
  */
 package com.digitalasset.refapps.ims;
 
-import static com.digitalasset.refapps.ims.util.TemplateManager.filterTemplates;
-
 import actors.signingparty.SigningPartyRole;
 import bitcoin.types.BitcoinAddress;
 import bitcoin.types.RawTx;
 import com.daml.ledger.javaapi.data.*;
-import com.daml.ledger.rxjava.components.LedgerViewFlowable;
 import com.daml.ledger.rxjava.components.helpers.CommandsAndPendingSet;
 import com.daml.ledger.rxjava.components.helpers.CreatedContract;
 import com.daml.ledger.rxjava.components.helpers.TemplateUtils;
-import com.digitalasset.refapps.ims.bitcoin.BTCUtility;
+import com.digitalasset.refapps.ims.bitcoin.ChangeAddressWallet;
+import com.digitalasset.refapps.ims.bitcoin.FeeEstimator;
+import com.digitalasset.refapps.ims.bitcoin.KeyProvider;
+import com.digitalasset.refapps.ims.bitcoin.TransactionSigningEngine;
 import com.digitalasset.refapps.ims.util.CommandsAndPendingSetBuilder;
+import com.digitalasset.refapps.ims.util.ContractIndex;
+import com.digitalasset.refapps.ims.util.InFlightContracts;
+import com.digitalasset.refapps.ims.util.LedgerDelta;
 import com.google.common.collect.Sets;
-import fr.acinq.bitcoin.Crypto;
 import fr.acinq.bitcoin.Satoshi;
 import io.reactivex.Flowable;
+import io.reactivex.schedulers.Schedulers;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import transfer.address.OwnedAddress;
+import transfer.consolidation.ConsolidationRequest;
 import transfer.transfer.NewTransfer;
+import transfer.transfer.UTXOData;
 
+/**
+ * Signs new transfers. By default every transfer becomes its own transaction. With a batch window,
+ * the transfers arriving within the window (up to a maximum batch size) are paid by a single
+ * transaction with one output per transfer and one change output, which is then recorded on every
+ * transfer of the batch. Transfers with inputs of an earlier transfer of the batch get their own
+ * transaction. RawTxPusherBot pushes the transaction once every transfer is confirmed.
+ * Consolidations are only signed to registered owned addresses whose key is known.
+ */
 public class TransactionSignerBot {
   public final TransactionFilter transactionFilter;
   private final CommandsAndPendingSetBuilder commandBuilder;
+  private static final Logger logger = LoggerFactory.getLogger(TransactionSignerBot.class);
+  private static final Duration IN_FLIGHT_TIMEOUT = Duration.ofSeconds(30);
 
-  private Map<BitcoinAddress, Crypto.PrivateKey> addressToPrivateKeyMap;
+  private TransactionSigningEngine signingEngine;
+  private final KeyProvider keyProvider;
+  private final ChangeAddressWallet changeAddressWallet;
+  private final FeeEstimator feeEstimator;
+  private final Duration batchWindow;
+  private final int maxBatchSize;
+  private final InFlightContracts inFlightTransfers;
+  private final InFlightContracts inFlightConsolidations = new InFlightContracts(IN_FLIGHT_TIMEOUT);
+  private final ContractIndex<NewTransfer> newTransfers = new ContractIndex<>(NewTransfer.class);
+  private final ContractIndex<ConsolidationRequest> consolidationRequests =
+      new ContractIndex<>(ConsolidationRequest.class);
+  private final ContractIndex<OwnedAddress> ownedAddresses =
+      new ContractIndex<>(OwnedAddress.class);
+  private final ContractIndex.SecondaryIndex<String, OwnedAddress> ownedAddressesByAddress =
+      ownedAddresses.addIndex(ownedAddress -> ownedAddress.address.unpack);
+  // the batch collecting transfers, null if there is none
+  private TransferBatch openBatch;
 
   public TransactionSignerBot(
       CommandsAndPendingSetBuilder.Factory commandBuilderFactory,
       String partyName,
-      Map<BitcoinAddress, Crypto.PrivateKey> privateKeyMap) {
+      TransactionSigningEngine signingEngine,
+      KeyProvider keyProvider,
+      ChangeAddressWallet changeAddressWallet,
+      FeeEstimator feeEstimator,
+      Duration batchWindow,
+      int maxBatchSize) {
 
     String workflowId =
         "WORKFLOW-" + partyName + "-TransactionCreatorBot-" + UUID.randomUUID().toString();
@@ -43,50 +86,273 @@ public class TransactionSignerBot {
     Filter messageFilter =
         new InclusiveFilter(
             Sets.newHashSet(
-                SigningPartyRole.TEMPLATE_ID, OwnedAddress.TEMPLATE_ID, NewTransfer.TEMPLATE_ID));
+                SigningPartyRole.TEMPLATE_ID,
+                NewTransfer.TEMPLATE_ID,
+                ConsolidationRequest.TEMPLATE_ID,
+                OwnedAddress.TEMPLATE_ID));
 
     this.transactionFilter = new FiltersByParty(Collections.singletonMap(partyName, messageFilter));
-    this.addressToPrivateKeyMap = privateKeyMap;
+    this.signingEngine = signingEngine;
+    this.keyProvider = keyProvider;
+    this.changeAddressWallet = changeAddressWallet;
+    this.feeEstimator = feeEstimator;
+    this.batchWindow = batchWindow;
+    this.maxBatchSize = maxBatchSize;
+    // batched transfers wait for the window before they are signed
+    this.inFlightTransfers = new InFlightContracts(IN_FLIGHT_TIMEOUT.plus(batchWindow));
+  }
+
+  public Flowable<CommandsAndPendingSet> process(LedgerDelta delta) {
+    newTransfers.apply(delta);
+    consolidationRequests.apply(delta);
+    ownedAddresses.apply(delta);
+    return Flowable.merge(signTransfers(), signConsolidations());
+  }
+
+  private Flowable<CommandsAndPendingSet> signTransfers() {
+    Map<String, NewTransfer> transferMap = newTransfers.getAll();
+    if (transferMap.isEmpty()) {
+      return Flowable.empty();
+    }
+
+    // transfers that are still being signed are not pending in the ledger view yet
+    Set<String> toSign = inFlightTransfers.claim(transferMap.keySet());
+    if (toSign.isEmpty()) {
+      return Flowable.empty();
+    }
+
+    if (batchWindow.isZero()) {
+      Map<String, NewTransfer> transfers = new LinkedHashMap<>();
+      toSign.forEach(cid -> transfers.put(cid, transferMap.get(cid)));
+      return inFlightTransfers.toFlowable(toSign, signEach(transfers));
+    }
+    List<Flowable<CommandsAndPendingSet>> closedBatches = new ArrayList<>();
+    for (String cid : toSign) {
+      addToBatch(cid, transferMap.get(cid)).ifPresent(closedBatches::add);
+    }
+    return Flowable.merge(closedBatches);
+  }
+
+  // A fresh change address, or the address of an input if the pool is exhausted.
+  private BitcoinAddress nextChangeAddress(NewTransfer transfer) {
+    return changeAddressWallet
+        .nextChangeAddress()
+        .orElseGet(
+            () -> {
+              logger.warn("No unused change address, returning the change to an input.");
+              return transfer.txInputs.get(0).address;
+            });
+  }
+
+  /**
+   * Adds the transfer to the open batch, or to a new one which is closed after the batch window.
+   * Returns the commands of the new batch, the commands of the other ones are returned by the call
+   * that opened them.
+   */
+  private synchronized Optional<Flowable<CommandsAndPendingSet>> addToBatch(
+      String cid, NewTransfer transfer) {
+    Optional<Flowable<CommandsAndPendingSet>> commands = Optional.empty();
+    if (openBatch == null) {
+      TransferBatch batch = new TransferBatch();
+      openBatch = batch;
+      Schedulers.computation()
+          .scheduleDirect(() -> close(batch), batchWindow.toMillis(), TimeUnit.MILLISECONDS);
+      commands =
+          Optional.of(
+              inFlightTransfers.toFlowable(
+                  batch.transfers.keySet(), batch.closed.thenCompose(done -> sign(batch))));
+    }
+    openBatch.transfers.put(cid, transfer);
+    if (openBatch.transfers.size() >= maxBatchSize) {
+      close(openBatch);
+    }
+    return commands;
+  }
+
+  private synchronized void close(TransferBatch batch) {
+    if (openBatch == batch) {
+      openBatch = null;
+    }
+    batch.closed.complete(null);
+  }
+
+  private CompletableFuture<List<CommandsAndPendingSet>> sign(TransferBatch batch) {
+    // A UTXO contract is spent by the transfer that transmits it, so the transfers of a batch must
+    // not share inputs. The ones that do are signed on their own.
+    Map<String, NewTransfer> batched = new LinkedHashMap<>();
+    Map<String, NewTransfer> overlapping = new LinkedHashMap<>();
+    Set<String> inputCids = new HashSet<>();
+    batch.transfers.forEach(
+        (cid, transfer) -> {
+          List<String> transferInputCids =
+              transfer.txInputUtxoCids.stream()
+                  .map(utxoCid -> utxoCid.contractId)
+                  .collect(Collectors.toList());
+          if (Collections.disjoint(inputCids, transferInputCids)) {
+            inputCids.addAll(transferInputCids);
+            batched.put(cid, transfer);
+          } else {
+            overlapping.put(cid, transfer);
+          }
+        });
+
+    List<UTXOData> inputs = new ArrayList<>();
+    Map<BitcoinAddress, Satoshi> payments = new LinkedHashMap<>();
+    long inputAmount = 0;
+    long paymentAmount = 0;
+    long transferFees = 0;
+    for (NewTransfer transfer : batched.values()) {
+      for (UTXOData input : transfer.txInputs) {
+        inputs.add(input);
+        inputAmount += input.value.unpack;
+      }
+      long amount = transfer.transferDetails.amount.unpack;
+      payments.merge(
+          transfer.transferDetails.address,
+          new Satoshi(amount),
+          (a, b) -> new Satoshi(a.amount() + b.amount()));
+      paymentAmount += amount;
+      transferFees += transfer.fee.unpack;
+    }
+    // never more than the fees recorded on the transfers
+    long fee = Math.min(transferFees, feeEstimator.estimateFee(inputs, payments.size() + 1));
+
+    if (batched.size() == 1 || inputAmount < paymentAmount + fee) {
+      return signEach(batch.transfers);
+    }
+    // one change address for the combined transaction, the others take their own
+    BitcoinAddress changeAddress = nextChangeAddress(batched.values().iterator().next());
+    logger.info(
+        "Paying {} transfers with {} inputs in one transaction, {} sharing inputs on their own.",
+        batched.size(),
+        inputs.size(),
+        overlapping.size());
+    CompletableFuture<List<CommandsAndPendingSet>> batchCommands =
+        signingEngine
+            .sign(inputs, payments, new Satoshi(fee), changeAddress)
+            .thenApply(
+                rawTx -> {
+                  // the transfers share the transaction, so they are signed in one submission
+                  CommandsAndPendingSetBuilder.Builder builder = commandBuilder.newBuilder();
+                  builder.addCommands(
+                      batched.keySet().stream()
+                          .map(cid -> new NewTransfer.ContractId(cid).exerciseSignTransfer(rawTx))
+                          .collect(Collectors.toList()));
+                  return builder.build();
+                });
+    if (overlapping.isEmpty()) {
+      return batchCommands;
+    }
+    return batchCommands.thenCombine(
+        signEach(overlapping),
+        (batchedCommands, overlappingCommands) -> {
+          List<CommandsAndPendingSet> commands = new ArrayList<>(batchedCommands);
+          commands.addAll(overlappingCommands);
+          return commands;
+        });
+  }
+
+  // Signs every transfer as a transaction of its own, each with its own change address, in
+  // parallel.
+  private CompletableFuture<List<CommandsAndPendingSet>> signEach(
+      Map<String, NewTransfer> transfers) {
+    // the commands keep the order of the transfers
+    Map<String, CompletableFuture<RawTx>> signedTxs = new LinkedHashMap<>();
+    transfers.forEach(
+        (cid, newTransfer) ->
+            signedTxs.put(
+                cid,
+                signingEngine.sign(
+                    newTransfer.txInputs,
+                    newTransfer.transferDetails.address,
+                    new Satoshi(newTransfer.transferDetails.amount.unpack),
+                    new Satoshi(newTransfer.fee.unpack),
+                    nextChangeAddress(newTransfer))));
+
+    return toCommands(
+        signedTxs,
+        (cid, rawTx) -> new NewTransfer.ContractId(cid).exerciseSignTransfer(rawTx),
+        inFlightTransfers);
   }
 
-  public Flowable<CommandsAndPendingSet> process(
-      LedgerViewFlowable.LedgerView<Template> ledgerView) {
-    CommandsAndPendingSetBuilder.Builder builder = commandBuilder.newBuilder();
-
-    Map<String, NewTransfer> transferMap =
-        filterTemplates(NewTransfer.class, ledgerView.getContracts(NewTransfer.TEMPLATE_ID));
-    Map<String, OwnedAddress> ownedAddressMap =
-        filterTemplates(OwnedAddress.class, ledgerView.getContracts(OwnedAddress.TEMPLATE_ID));
-
-    for (Map.Entry<String, NewTransfer> entry : transferMap.entrySet()) {
-      NewTransfer.ContractId newTransferCid = new NewTransfer.ContractId(entry.getKey());
-      NewTransfer newTransfer = entry.getValue();
-
-      // find a change address
-      BitcoinAddress ownedAddressForChange =
-          ownedAddressMap.entrySet().stream()
-              .filter(ownedEntry -> ownedEntry.getValue().balance.unpack == 0)
-              .findFirst()
-              .get()
-              .getValue()
-              .address;
-
-      RawTx rawTx =
-          BTCUtility.createTransactionData(
-              newTransfer.txInputs,
-              newTransfer.transferDetails.address,
-              new Satoshi(newTransfer.transferDetails.amount.unpack),
-              new Satoshi(newTransfer.fee.unpack),
-              addressToPrivateKeyMap,
-              ownedAddressForChange);
-
-      builder.addCommand(newTransferCid.exerciseSignTransfer(rawTx));
+  // Consolidations pay all inputs but the fee to the address, without change.
+  private Flowable<CommandsAndPendingSet> signConsolidations() {
+    Map<String, ConsolidationRequest> requestMap = consolidationRequests.getAll();
+    Set<String> toSign = inFlightConsolidations.claim(requestMap.keySet());
+    if (toSign.isEmpty()) {
+      return Flowable.empty();
     }
+    Map<String, CompletableFuture<RawTx>> signedTxs = new LinkedHashMap<>();
+    Map<String, OwnedAddress.ContractId> ownedAddressCids = new HashMap<>();
+    List<String> refused = new ArrayList<>();
+    for (String cid : toSign) {
+      ConsolidationRequest request = requestMap.get(cid);
+      String address = request.address.unpack;
+      Optional<String> ownedAddressCid =
+          ownedAddressesByAddress.get(address).keySet().stream().findFirst();
+      if (!ownedAddressCid.isPresent() || !keyProvider.getPrivateKey(address).isPresent()) {
+        logger.warn("Refusing to consolidate {} to {}, it is not an owned address.", cid, address);
+        refused.add(cid);
+        continue;
+      }
+      ownedAddressCids.put(cid, new OwnedAddress.ContractId(ownedAddressCid.get()));
+      long total = request.txInputs.stream().mapToLong(input -> input.value.unpack).sum();
+      signedTxs.put(
+          cid,
+          signingEngine.sign(
+              request.txInputs,
+              request.address,
+              new Satoshi(total - request.fee.unpack),
+              new Satoshi(request.fee.unpack),
+              request.address));
+    }
+    // refused requests are not looked at again before the timeout
+    inFlightConsolidations.complete(refused);
+    return inFlightConsolidations.toFlowable(
+        signedTxs.keySet(),
+        toCommands(
+            signedTxs,
+            (cid, rawTx) ->
+                new ConsolidationRequest.ContractId(cid)
+                    .exerciseSignConsolidation(rawTx, ownedAddressCids.get(cid)),
+            inFlightConsolidations));
+  }
+
+  // Commands for the signed transactions, the contracts whose signing failed are released.
+  private CompletableFuture<List<CommandsAndPendingSet>> toCommands(
+      Map<String, CompletableFuture<RawTx>> signedTxs,
+      BiFunction<String, RawTx, Command> toCommand,
+      InFlightContracts inFlightContracts) {
+    return CompletableFuture.allOf(signedTxs.values().toArray(new CompletableFuture[0]))
+        .handle(
+            (done, error) -> {
+              CommandsAndPendingSetBuilder.Builder builder = commandBuilder.newBuilder();
+              List<String> failed = new ArrayList<>();
+              signedTxs.forEach(
+                  (cid, signedTx) -> {
+                    if (signedTx.isCompletedExceptionally()) {
+                      failed.add(cid);
+                    } else {
+                      builder.addCommand(toCommand.apply(cid, signedTx.join()));
+                    }
+                  });
+              if (!failed.isEmpty()) {
+                logger.warn("Signing of {} failed, will retry.", failed, error);
+                inFlightContracts.release(failed);
+              }
+              return builder.build();
+            });
+  }
 
-    return builder.buildFlowable();
+  private static class TransferBatch {
+    private final Map<String, NewTransfer> transfers = new LinkedHashMap<>();
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
   }
 
   public static Function<CreatedContract, Template> getContractInfo =
       TemplateUtils.contractTransformer(
-          NewTransfer.class, SigningPartyRole.class, OwnedAddress.class);
+          NewTransfer.class,
+          SigningPartyRole.class,
+          ConsolidationRequest.class,
+          OwnedAddress.class);
 }
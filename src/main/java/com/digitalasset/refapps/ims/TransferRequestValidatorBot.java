@@ -4,14 +4,12 @@
  */
 package com.digitalasset.refapps.ims;
 
-import static com.digitalasset.refapps.ims.util.TemplateManager.filterTemplates;
-
 import com.daml.ledger.javaapi.data.*;
-import com.daml.ledger.rxjava.components.LedgerViewFlowable;
 import com.daml.ledger.rxjava.components.helpers.CommandsAndPendingSet;
 import com.daml.ledger.rxjava.components.helpers.CreatedContract;
 import com.daml.ledger.rxjava.components.helpers.TemplateUtils;
 import com.digitalasset.refapps.ims.util.CommandsAndPendingSetBuilder;
+import com.digitalasset.refapps.ims.util.LedgerDelta;
 import com.google.common.collect.Sets;
 import io.reactivex.Flowable;
 import java.util.*;
@@ -33,14 +31,12 @@ public class TransferRequestValidatorBot {
     this.transactionFilter = new FiltersByParty(Collections.singletonMap(partyName, messageFilter));
   }
 
-  public Flowable<CommandsAndPendingSet> process(
-      LedgerViewFlowable.LedgerView<Template> ledgerView) {
+  /** Validates the newly created transfer requests, see LedgerDelta. */
+  public Flowable<CommandsAndPendingSet> process(LedgerDelta delta) {
     CommandsAndPendingSetBuilder.Builder builder = commandBuilder.newBuilder();
 
     Map<String, UncheckedTransferRequest> transferRequestMap =
-        filterTemplates(
-            UncheckedTransferRequest.class,
-            ledgerView.getContracts(UncheckedTransferRequest.TEMPLATE_ID));
+        delta.getCreated(UncheckedTransferRequest.class);
 
     transferRequestMap.keySet().stream()
         .map(UncheckedTransferRequest.ContractId::new)
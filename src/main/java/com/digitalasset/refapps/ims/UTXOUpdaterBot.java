@@ -4,26 +4,30 @@
  */
 package com.digitalasset.refapps.ims;
 
-import static com.digitalasset.refapps.ims.util.TemplateManager.filterTemplates;
-
 import actors.operator.OnboardEntityMaster;
 import actors.operator.UTXOUpdateRequest;
 import bitcoin.types.Satoshi;
 import com.daml.ledger.javaapi.data.*;
-import com.daml.ledger.rxjava.components.LedgerViewFlowable;
 import com.daml.ledger.rxjava.components.helpers.CommandsAndPendingSet;
 import com.daml.ledger.rxjava.components.helpers.CreatedContract;
 import com.daml.ledger.rxjava.components.helpers.TemplateUtils;
 import com.digitalasset.refapps.ims.bitcoin.BTCService;
 import com.digitalasset.refapps.ims.bitcoin.TxRef;
+import com.digitalasset.refapps.ims.bitcoin.UtxoDelta;
+import com.digitalasset.refapps.ims.bitcoin.UtxoId;
+import com.digitalasset.refapps.ims.bitcoin.UtxoSet;
 import com.digitalasset.refapps.ims.util.CommandsAndPendingSetBuilder;
+import com.digitalasset.refapps.ims.util.ContractIndex;
+import com.digitalasset.refapps.ims.util.InFlightContracts;
+import com.digitalasset.refapps.ims.util.LedgerDelta;
 import com.digitalasset.refapps.ims.util.Utility;
 import com.google.common.collect.Sets;
 import io.reactivex.Flowable;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
 import java.util.function.Function;
-import java.util.stream.Collectors;
-import org.pcollections.PMap;
+import java.util.function.Predicate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import transfer.address.OwnedAddress;
@@ -34,7 +38,27 @@ public class UTXOUpdaterBot {
   public final TransactionFilter transactionFilter;
   private final CommandsAndPendingSetBuilder commandBuilder;
   private static final Logger logger = LoggerFactory.getLogger(UTXOUpdaterBot.class);
+  private static final Duration IN_FLIGHT_TIMEOUT = Duration.ofSeconds(30);
   private BTCService btcService;
+  private final InFlightContracts inFlightRequests = new InFlightContracts(IN_FLIGHT_TIMEOUT);
+  private final ContractIndex<UTXOUpdateRequest> requests =
+      new ContractIndex<>(UTXOUpdateRequest.class);
+  private final ContractIndex<OnboardEntityMaster> operators =
+      new ContractIndex<>(OnboardEntityMaster.class);
+  private final ContractIndex<OwnedAddress> ownedAddresses =
+      new ContractIndex<>(OwnedAddress.class);
+  private final ContractIndex<UTXO> utxos = new ContractIndex<>(UTXO.class);
+  // requests that arrived while a scan was running, they are acknowledged by the next scan
+  private final Set<String> waitingRequests = new LinkedHashSet<>();
+  private boolean scanning;
+  // outputs registered by earlier scans whose contracts are not in the ledger view yet, so that
+  // the next scan does not register them again
+  private final Map<UtxoId, Registration> registrations = new HashMap<>();
+  // what the scans need of the contracts, rebuilt when their index changed since the last scan
+  private Map<String, List<OwnedAddress.ContractId>> ownedAddressCids = Collections.emptyMap();
+  private long ownedAddressesVersion = -1;
+  private List<UtxoContract> utxoContracts = Collections.emptyList();
+  private long utxosVersion = -1;
 
   public UTXOUpdaterBot(
       CommandsAndPendingSetBuilder.Factory commandBuilderFactory,
@@ -56,70 +80,202 @@ public class UTXOUpdaterBot {
     this.transactionFilter = new FiltersByParty(Collections.singletonMap(partyName, messageFilter));
   }
 
-  public Flowable<CommandsAndPendingSet> process(
-      LedgerViewFlowable.LedgerView<Template> ledgerView) {
-    CommandsAndPendingSetBuilder.Builder builder = commandBuilder.newBuilder();
-
-    Map<String, UTXOUpdateRequest> requestMap =
-        filterTemplates(
-            UTXOUpdateRequest.class, ledgerView.getContracts(UTXOUpdateRequest.TEMPLATE_ID));
-    if (requestMap.isEmpty()) {
-      return Flowable.empty();
+  /**
+   * At most one scan runs at a time. Requests that arrive meanwhile are acknowledged by the next
+   * scan, which is started on the first ledger event after the previous one finished.
+   */
+  public Flowable<CommandsAndPendingSet> process(LedgerDelta delta) {
+    Map<String, UTXOUpdateRequest> requestMap = requests.apply(delta).getAll();
+    operators.apply(delta);
+    ownedAddresses.apply(delta);
+    utxos.apply(delta);
+    Map<String, OnboardEntityMaster> operatorMap = operators.getAll();
+    synchronized (this) {
+      // requests of a scan that is still running are not pending in the ledger view yet
+      waitingRequests.addAll(inFlightRequests.claim(requestMap.keySet()));
+      waitingRequests.retainAll(requestMap.keySet());
+      pruneRegistrations(delta.getCreated(UTXO.class).values());
+      // the operator is pending while the commands of the previous scan are in flight
+      if (scanning || waitingRequests.isEmpty() || operatorMap.isEmpty()) {
+        return Flowable.empty();
+      }
+      scanning = true;
     }
-    Map<String, OnboardEntityMaster> operatorMap =
-        filterTemplates(
-            OnboardEntityMaster.class, ledgerView.getContracts(OnboardEntityMaster.TEMPLATE_ID));
-    Map<String, OwnedAddress> ownedAddressMap =
-        filterTemplates(OwnedAddress.class, ledgerView.getContracts(OwnedAddress.TEMPLATE_ID));
-    Map<String, UTXO> utxoMap =
-        filterTemplates(UTXO.class, ledgerView.getContracts(UTXO.TEMPLATE_ID));
-
-    Set<UTXOData> oldTxHashes = getExistingHashes(utxoMap);
-    Set<UTXOData> newTxHashes = new HashSet<>();
+    Set<String> claimedRequests = takeWaitingRequests();
+    // immutable, the scan is finished on another thread while the indexes change
+    Map<String, List<OwnedAddress.ContractId>> addressCids = getOwnedAddressCids();
+    List<UtxoContract> contracts = getUtxoContracts();
+
     OnboardEntityMaster.ContractId operatorCid =
-        new OnboardEntityMaster.ContractId(operatorMap.entrySet().iterator().next().getKey());
-
-    for (PMap.Entry<String, OwnedAddress> kv : ownedAddressMap.entrySet()) {
-      OwnedAddress ownedAddress = kv.getValue();
-      OwnedAddress.ContractId ownedAddressCid = new OwnedAddress.ContractId(kv.getKey());
-
-      btcService
-          .getTxDetailsForAddress(Utility.unpack(ownedAddress.address))
-          .ifPresent(
-              transactions -> {
-                for (TxRef txRef : transactions.getTxRefs()) {
-                  UTXOData utxoData = txRef.toUtxoData();
-                  newTxHashes.add(utxoData);
-
-                  if (oldTxHashes.contains(utxoData)) {
-                    logger.info("{} already exists", format(utxoData));
-                  } else {
-                    logger.info("Found new {}", format(utxoData));
-                    Command command = operatorCid.exerciseRegisterUTXO(utxoData);
-                    builder.addCommand(command);
-                  }
+        new OnboardEntityMaster.ContractId(operatorMap.keySet().iterator().next());
+    Reconciliation reconciliation = new Reconciliation(operatorCid, getExistingUtxos(contracts));
+    // the scan runs on the Bitcoin client's threads, not on the ledger event thread
+    return inFlightRequests.toFlowable(
+        claimedRequests,
+        btcService
+            .syncUTXOsAsync(addressCids.keySet(), reconciliation::onCreated)
+            .thenApply(
+                utxoDelta ->
+                    reconciliation.finish(utxoDelta, claimedRequests, addressCids, contracts))
+            .whenComplete((commands, error) -> finishScan()));
+  }
+
+  // The OwnedAddress contracts by address.
+  private Map<String, List<OwnedAddress.ContractId>> getOwnedAddressCids() {
+    if (ownedAddresses.getVersion() != ownedAddressesVersion) {
+      Map<String, List<OwnedAddress.ContractId>> cidsByAddress = new HashMap<>();
+      ownedAddresses
+          .getAll()
+          .forEach(
+              (cid, ownedAddress) ->
+                  cidsByAddress
+                      .computeIfAbsent(Utility.unpack(ownedAddress.address), a -> new ArrayList<>())
+                      .add(new OwnedAddress.ContractId(cid)));
+      ownedAddressCids = Collections.unmodifiableMap(cidsByAddress);
+      ownedAddressesVersion = ownedAddresses.getVersion();
+    }
+    return ownedAddressCids;
+  }
+
+  private List<UtxoContract> getUtxoContracts() {
+    if (utxos.getVersion() != utxosVersion) {
+      List<UtxoContract> contracts = new ArrayList<>(utxos.getAll().size());
+      utxos.getAll().forEach((cid, utxo) -> contracts.add(new UtxoContract(cid, utxo.utxoData)));
+      utxoContracts = Collections.unmodifiableList(contracts);
+      utxosVersion = utxos.getVersion();
+    }
+    return utxoContracts;
+  }
+
+  private synchronized Set<String> takeWaitingRequests() {
+    Set<String> taken = new LinkedHashSet<>(waitingRequests);
+    waitingRequests.clear();
+    return taken;
+  }
+
+  // The registrations of the scan time out from now on, its commands are emitted.
+  private synchronized void finishScan() {
+    scanning = false;
+    Instant expiry = Instant.now().plus(IN_FLIGHT_TIMEOUT);
+    registrations.replaceAll(
+        (utxoId, registration) ->
+            registration.expiry.equals(Instant.MAX)
+                ? new Registration(registration.fingerprint, expiry)
+                : registration);
+  }
+
+  private synchronized void register(TxRef txRef, long fingerprint) {
+    registrations.put(txRef.getId(), new Registration(fingerprint, Instant.MAX));
+  }
+
+  // Registrations end when their contract is created, or time out if the command failed.
+  private void pruneRegistrations(Collection<UTXO> createdUtxos) {
+    for (UTXO utxo : createdUtxos) {
+      UtxoId utxoId = new UtxoId(utxo.utxoData.txHash.unpack, utxo.utxoData.outputIdx);
+      Registration registration = registrations.get(utxoId);
+      if (registration != null && registration.fingerprint == TxRef.fingerprint(utxo.utxoData)) {
+        registrations.remove(utxoId);
+      }
+    }
+    Instant now = Instant.now();
+    registrations.values().removeIf(registration -> registration.expiry.isBefore(now));
+  }
+
+  // A UTXO contract with the key and the fingerprint of its output.
+  private static class UtxoContract {
+    private final UTXO.ContractId cid;
+    private final String txHash;
+    private final long outputIdx;
+    private final long fingerprint;
+
+    private UtxoContract(String cid, UTXOData utxoData) {
+      this.cid = new UTXO.ContractId(cid);
+      this.txHash = utxoData.txHash.unpack;
+      this.outputIdx = utxoData.outputIdx;
+      this.fingerprint = TxRef.fingerprint(utxoData);
+    }
+  }
+
+  private static class Registration {
+    private final long fingerprint;
+    private final Instant expiry;
+
+    private Registration(long fingerprint, Instant expiry) {
+      this.fingerprint = fingerprint;
+      this.expiry = expiry;
+    }
+  }
+
+  /**
+   * Reconciles the UTXO contracts with the outputs found on the Bitcoin network. New outputs are
+   * registered while they are streamed in, the rest is done once the scan is complete.
+   */
+  private class Reconciliation {
+    private final CommandsAndPendingSetBuilder.Builder builder = commandBuilder.newBuilder();
+    private final OnboardEntityMaster.ContractId operatorCid;
+    // outputs with the fingerprints of their data, the data of an output can change (confirmed);
+    // the ones found by the scan are marked instead of being copied
+    private final UtxoSet existingUtxos;
+
+    Reconciliation(OnboardEntityMaster.ContractId operatorCid, UtxoSet existingUtxos) {
+      this.operatorCid = operatorCid;
+      this.existingUtxos = existingUtxos;
+    }
+
+    void onCreated(TxRef txRef) {
+      long fingerprint = txRef.fingerprint();
+      if (existingUtxos.mark(txRef.getTxHash(), txRef.getOutputIdx(), fingerprint)) {
+        logger.debug(
+            "UTXO with index {} of Tx {} already exists", txRef.getOutputIdx(), txRef.getTxHash());
+      } else {
+        UTXOData utxoData = txRef.toUtxoData();
+        logger.info("Found new {}", format(utxoData));
+        Command command = operatorCid.exerciseRegisterUTXO(utxoData);
+        builder.addCommand(command);
+        register(txRef, fingerprint);
+      }
+    }
+
+    List<CommandsAndPendingSet> finish(
+        UtxoDelta delta,
+        Set<String> requests,
+        Map<String, List<OwnedAddress.ContractId>> ownedAddressCids,
+        List<UtxoContract> utxoContracts) {
+      // an incremental scan only reports the addresses it affected
+      delta
+          .getBalancesByAddress()
+          .forEach(
+              (address, addressBalance) -> {
+                long balance = addressBalance.getBalance();
+                long numTx = addressBalance.getNumTx();
+                for (OwnedAddress.ContractId ownedAddressCid :
+                    ownedAddressCids.getOrDefault(address, Collections.emptyList())) {
+                  Command updateAddressBalance =
+                      ownedAddressCid.exerciseUpdateBalance(new Satoshi(balance), numTx);
+                  builder.addCommand(updateAddressBalance);
                 }
-                long balance = transactions.getBalance();
-                long numTx = transactions.getNumTx();
-                Command updateAddressBalance =
-                    ownedAddressCid.exerciseUpdateBalance(new Satoshi(balance), numTx);
-                builder.addCommand(updateAddressBalance);
               });
-    }
 
-    // remove utxos that have been spent
-    oldTxHashes.removeAll(newTxHashes);
+      // remove utxos that have been spent
+      Predicate<UtxoContract> isSpent;
+      if (delta.isFullScan()) {
+        isSpent =
+            utxo -> !existingUtxos.isMarked(utxo.txHash, utxo.outputIdx, utxo.fingerprint);
+      } else {
+        isSpent = utxo -> delta.getSpent().contains(new UtxoId(utxo.txHash, utxo.outputIdx));
+      }
 
-    utxoMap.entrySet().stream()
-        .filter(e -> oldTxHashes.contains(e.getValue().utxoData))
-        .map(e -> new UTXO.ContractId(e.getKey()).exerciseSpend())
-        .forEach(builder::addCommand);
+      utxoContracts.stream()
+          .filter(isSpent)
+          .map(utxo -> utxo.cid.exerciseSpend())
+          .forEach(builder::addCommand);
 
-    requestMap.entrySet().stream()
-        .map(e -> new UTXOUpdateRequest.ContractId(e.getKey()).exerciseAckUTXOUpdateRequest())
-        .forEach(builder::addCommand);
+      requests.stream()
+          .map(cid -> new UTXOUpdateRequest.ContractId(cid).exerciseAckUTXOUpdateRequest())
+          .forEach(builder::addCommand);
 
-    return builder.buildFlowable();
+      return builder.build();
+    }
   }
 
   public static Function<CreatedContract, Template> getContractInfo =
@@ -132,11 +288,22 @@ public class UTXOUpdaterBot {
         utxoData.outputIdx, utxoData.txHash.unpack, utxoData.value.unpack, utxoData.address.unpack);
   }
 
-  private static Set<UTXOData> getExistingHashes(Map<String, UTXO> utxoMap) {
-    Set<UTXOData> existingTxHashes =
-        utxoMap.values().stream().map(utxo -> utxo.utxoData).collect(Collectors.toSet());
-    logger.info("Existing Hashes: ");
-    existingTxHashes.forEach(h -> logger.info(format(h)));
-    return existingTxHashes;
+  // The UTXO contracts, and the outputs registered by earlier scans that are not contracts yet.
+  private UtxoSet getExistingUtxos(List<UtxoContract> utxoContracts) {
+    Map<UtxoId, Registration> registered;
+    synchronized (this) {
+      registered = new HashMap<>(registrations);
+    }
+    UtxoSet existingUtxos = new UtxoSet(utxoContracts.size() + registered.size());
+    for (UtxoContract utxo : utxoContracts) {
+      existingUtxos.put(utxo.txHash, utxo.outputIdx, utxo.fingerprint);
+    }
+    registered.forEach(
+        (utxoId, registration) ->
+            existingUtxos.put(
+                utxoId.getTxHash(), utxoId.getOutputIdx(), registration.fingerprint));
+    logger.info(
+        "{} existing UTXOs, {} of them being registered", existingUtxos.size(), registered.size());
+    return existingUtxos;
   }
 }
@@ -0,0 +1,40 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.bitcoin;
+
+/** Balance and number of unspent outputs of an address, summed up while the outputs are read. */
+public class AddressBalance {
+  private long balance;
+  private long numTx;
+
+  public AddressBalance() {}
+
+  AddressBalance(AddressBalance other) {
+    this.balance = other.balance;
+    this.numTx = other.numTx;
+  }
+
+  public void add(TxRef txRef) {
+    add(txRef.getValue());
+  }
+
+  void add(long value) {
+    balance += value;
+    numTx++;
+  }
+
+  void remove(long value) {
+    balance -= value;
+    numTx--;
+  }
+
+  public long getBalance() {
+    return balance;
+  }
+
+  public long getNumTx() {
+    return numTx;
+  }
+}
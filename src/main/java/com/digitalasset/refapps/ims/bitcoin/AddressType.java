@@ -0,0 +1,87 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.bitcoin;
+
+import fr.acinq.bitcoin.Base58;
+import fr.acinq.bitcoin.Base58Check;
+import fr.acinq.bitcoin.Bech32;
+import fr.acinq.bitcoin.BinaryData;
+import fr.acinq.bitcoin.Script;
+import java.util.Optional;
+
+/**
+ * The types of owned addresses: legacy pay-to-pubkey-hash (Base58) and native SegWit
+ * pay-to-witness-pubkey-hash (Bech32), which is spent with a witness instead of a signature script
+ * and makes inputs less than half the virtual size.
+ */
+public enum AddressType {
+  P2PKH,
+  P2WPKH;
+
+  private static final byte ADDRESS_PREFIX = Base58.Prefix$.MODULE$.PubkeyAddressTestnet();
+  private static final int HASH_SIZE = 20;
+  // OP_0 followed by a push of the 20-byte key hash
+  private static final String P2WPKH_SCRIPT_PREFIX = "0014";
+
+  public static AddressType ofAddress(String address) {
+    return isBech32(address) ? P2WPKH : P2PKH;
+  }
+
+  /** The type of an output by its script (hex), e.g. the sigScript of a UTXO. */
+  public static AddressType ofScript(String scriptPubKey) {
+    return scriptPubKey.length() == 2 * (HASH_SIZE + 2)
+            && scriptPubKey.startsWith(P2WPKH_SCRIPT_PREFIX)
+        ? P2WPKH
+        : P2PKH;
+  }
+
+  /** The address of the key hash on the network. */
+  public String encode(Network network, BinaryData hash160) {
+    return this == P2WPKH
+        ? Bech32.encodeWitnessAddress(network.getBech32Prefix(), (byte) 0, hash160)
+        : Base58Check.encode(ADDRESS_PREFIX, hash160.data());
+  }
+
+  /**
+   * The key hash of a pay-to-pubkey-hash or version 0 witness address of one of the networks, empty
+   * for others.
+   */
+  public static Optional<BinaryData> decode(String address) {
+    try {
+      if (isBech32(address)) {
+        scala.Tuple3<String, Object, BinaryData> decoded = Bech32.decodeWitnessAddress(address);
+        return (Byte) decoded._2() == 0 && decoded._3().length() == HASH_SIZE
+            ? Optional.of(decoded._3())
+            : Optional.empty();
+      }
+      scala.Tuple2<Object, BinaryData> decoded = Base58Check.decode(address);
+      return (Byte) decoded._1() == ADDRESS_PREFIX && decoded._2().length() == HASH_SIZE
+          ? Optional.of(decoded._2())
+          : Optional.empty();
+    } catch (RuntimeException e) {
+      return Optional.empty();
+    }
+  }
+
+  /** The output script paying the address. */
+  public static BinaryData toScript(String address) {
+    BinaryData hash160 =
+        decode(address)
+            .orElseThrow(() -> new IllegalArgumentException("Unsupported address " + address));
+    return ofAddress(address) == P2WPKH
+        ? Script.write(Script.pay2wpkh(hash160))
+        : Script.write(Script.pay2pkh(hash160));
+  }
+
+  private static boolean isBech32(String address) {
+    String lowerCase = address.toLowerCase();
+    for (Network network : Network.values()) {
+      if (lowerCase.startsWith(network.getBech32Prefix() + "1")) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -4,7 +4,15 @@
  */
 package com.digitalasset.refapps.ims.bitcoin;
 
+import com.google.common.collect.Lists;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 import org.json.simple.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,16 +21,52 @@ import org.slf4j.LoggerFactory;
 public class BTCService {
   private static final Logger logger = LoggerFactory.getLogger(BTCService.class);
 
+  public static final int DEFAULT_MAX_ADDRESSES_PER_SCAN = 1000;
+
+  private static final int MIN_CONFIRMATION = 1;
+  // error code of sendrawtransaction for transactions that are already mined
+  private static final Long RPC_VERIFY_ALREADY_IN_CHAIN = -27L;
+
   private BitcoinClient bitcoinClient;
+  private int maxAddressesPerScan;
+  private Optional<IncrementalUtxoScanner> incrementalScanner;
 
   public BTCService(BitcoinClient bitcoinClient) {
+    this(bitcoinClient, DEFAULT_MAX_ADDRESSES_PER_SCAN, 0);
+  }
+
+  /**
+   * @param fullScanInterval with a positive value, UTXOs are synchronised incrementally and only
+   *     every fullScanInterval-th synchronisation is a full scan
+   */
+  public BTCService(BitcoinClient bitcoinClient, int maxAddressesPerScan, int fullScanInterval) {
     this.bitcoinClient = bitcoinClient;
+    this.maxAddressesPerScan = maxAddressesPerScan;
+    this.incrementalScanner =
+        fullScanInterval > 0
+            ? Optional.of(
+                new IncrementalUtxoScanner(
+                    bitcoinClient, this::scanUTXOs, MIN_CONFIRMATION, fullScanInterval))
+            : Optional.empty();
   }
 
   public TransactionResponse pushTransaction(String rawTx) {
-    JSONObject response = (JSONObject) bitcoinClient.sendRawTransaction(rawTx);
+    return toTransactionResponse((JSONObject) bitcoinClient.sendRawTransaction(rawTx));
+  }
+
+  public CompletableFuture<TransactionResponse> pushTransactionAsync(String rawTx) {
+    return bitcoinClient
+        .sendRawTransactionAsync(rawTx)
+        .thenApply(response -> toTransactionResponse((JSONObject) response));
+  }
+
+  private TransactionResponse toTransactionResponse(JSONObject response) {
     JSONObject error = (JSONObject) response.get("error");
-    if (error != null) {
+    if (error != null && RPC_VERIFY_ALREADY_IN_CHAIN.equals(error.get("code"))) {
+      // pushed before, e.g. for another transfer paid by the same transaction
+      return new TransactionResponse(
+          TransactionResponse.Status.TRANSMITTED, "Transaction already in block chain\n");
+    } else if (error != null) {
       String errorMessage = (String) error.get("message");
       logger.warn(
           "Something went wrong while pushing TXs! HttpResponseCode: "
@@ -38,13 +82,89 @@ public class BTCService {
   }
 
   public Optional<Transactions> getTxDetailsForAddress(String address) {
-    Iterable<TxRef> txRefs = bitcoinClient.listUTXOs(1, address);
+    return Optional.of(toTransactions(bitcoinClient.listUTXOs(MIN_CONFIRMATION, address)));
+  }
+
+  /**
+   * Scans the unspent outputs of all addresses with one listunspent call per chunk of at most
+   * maxAddressesPerScan addresses. Every address is present in the result, even without outputs.
+   */
+  public Map<String, Transactions> getTxDetailsForAddresses(Collection<String> addresses) {
+    Map<String, List<TxRef>> txRefsByAddress = new LinkedHashMap<>();
+    addresses.forEach(address -> txRefsByAddress.put(address, new ArrayList<>()));
+    for (TxRef txRef : listUTXOs(addresses)) {
+      txRefsByAddress.computeIfAbsent(txRef.getAddress(), a -> new ArrayList<>()).add(txRef);
+    }
+    Map<String, Transactions> result = new LinkedHashMap<>();
+    txRefsByAddress.forEach((address, txRefs) -> result.put(address, toTransactions(txRefs)));
+    return result;
+  }
+
+  /**
+   * Streams the unspent outputs of all addresses to the consumer, with one listunspent call per
+   * chunk of at most maxAddressesPerScan addresses, and sums up the balances on the fly. Every
+   * address is present in the result, even without outputs. The chunks are scanned concurrently,
+   * bounded by the concurrency limit of the client, but the consumer is called by one at a time.
+   */
+  public Map<String, AddressBalance> scanUTXOs(
+      Collection<String> addresses, Consumer<TxRef> consumer) {
+    Map<String, AddressBalance> balances = new LinkedHashMap<>();
+    addresses.forEach(address -> balances.put(address, new AddressBalance()));
+    Consumer<TxRef> accumulator =
+        txRef -> {
+          synchronized (balances) {
+            balances.computeIfAbsent(txRef.getAddress(), a -> new AddressBalance()).add(txRef);
+            consumer.accept(txRef);
+          }
+        };
+    List<List<String>> chunks = Lists.partition(new ArrayList<>(addresses), maxAddressesPerScan);
+    if (chunks.size() == 1) {
+      bitcoinClient.forEachUTXO(MIN_CONFIRMATION, chunks.get(0), accumulator);
+    } else if (chunks.size() > 1) {
+      List<CompletableFuture<Void>> scans = new ArrayList<>(chunks.size());
+      for (List<String> chunk : chunks) {
+        scans.add(
+            bitcoinClient.supplyAsync(
+                () -> {
+                  bitcoinClient.forEachUTXO(MIN_CONFIRMATION, chunk, accumulator);
+                  return null;
+                }));
+      }
+      scans.forEach(CompletableFuture::join);
+    }
+    return balances;
+  }
+
+  /**
+   * Synchronises the unspent outputs of the addresses and passes the ones created since the last
+   * synchronisation to onCreated. Without incremental synchronisation, this is always a full scan
+   * and every unspent output is passed on.
+   */
+  public UtxoDelta syncUTXOs(Collection<String> addresses, Consumer<TxRef> onCreated) {
+    return incrementalScanner
+        .map(scanner -> scanner.sync(addresses, onCreated))
+        .orElseGet(() -> UtxoDelta.fullScan(scanUTXOs(addresses, onCreated)));
+  }
+
+  /** Like syncUTXOs, but does not block the caller. onCreated is called on another thread. */
+  public CompletableFuture<UtxoDelta> syncUTXOsAsync(
+      Collection<String> addresses, Consumer<TxRef> onCreated) {
+    return bitcoinClient.supplyAsync(() -> syncUTXOs(addresses, onCreated));
+  }
+
+  private List<TxRef> listUTXOs(Collection<String> addresses) {
+    List<TxRef> txRefs = new ArrayList<>();
+    scanUTXOs(addresses, txRefs::add);
+    return txRefs;
+  }
+
+  private static Transactions toTransactions(Iterable<TxRef> txRefs) {
     long balance = 0;
     long numTx = 0;
     for (TxRef x : txRefs) {
       balance += x.getValue();
       numTx++;
     }
-    return Optional.of(new Transactions(txRefs, balance, numTx));
+    return new Transactions(txRefs, balance, numTx);
   }
 }
@@ -4,44 +4,104 @@
  */
 package com.digitalasset.refapps.ims.bitcoin;
 
-import java.io.IOException;
-import java.io.InputStreamReader;
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.digitalasset.refapps.ims.bitcoin.BlockDataCache.BlockHeader;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.math.BigDecimal;
-import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.*;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.fluent.Request;
-import org.apache.http.entity.ContentType;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class BitcoinClient {
 
   private static final BigDecimal BTC_SATOSHI = BigDecimal.valueOf(100_000_000L);
-  private String bitcoinUrl;
-  private String authInfo;
+  public static final int DEFAULT_MAX_BATCH_SIZE = 500;
+  public static final int DEFAULT_MAX_CONCURRENCY = 4;
+  private static final Logger logger = LoggerFactory.getLogger(BitcoinClient.class);
+  private BitcoinRpcTransport transport;
+  private int maxBatchSize;
+  private BlockDataCache blockDataCache;
+  // bounds the number of concurrent calls, no matter which thread issues them
+  private Semaphore rpcPermits;
+  private ExecutorService executor;
+  private BitcoinRpcMetrics rpcMetrics;
 
   public BitcoinClient(String bitcoinUrl, String userName, String password) {
-    this.bitcoinUrl = bitcoinUrl;
-    this.authInfo = createAuthInfo(userName, password);
+    this(
+        new BitcoinRpcTransport(bitcoinUrl, userName, password),
+        DEFAULT_MAX_BATCH_SIZE,
+        BlockDataCache.disabled(),
+        DEFAULT_MAX_CONCURRENCY,
+        new MetricRegistry());
   }
 
-  private String createAuthInfo(String userName, String password) {
-    return String.format(
-        "Basic %s",
-        Base64.getEncoder()
-            .encodeToString(
-                String.format("%s:%s", userName, password).getBytes(StandardCharsets.UTF_8)));
+  /** @param metricRegistry receives the metrics of the RPC calls, see BitcoinRpcMetrics */
+  public BitcoinClient(
+      BitcoinRpcTransport transport,
+      int maxBatchSize,
+      BlockDataCache blockDataCache,
+      int maxConcurrency,
+      MetricRegistry metricRegistry) {
+    if (maxBatchSize < 1) {
+      throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+    }
+    this.transport = transport;
+    this.maxBatchSize = maxBatchSize;
+    this.blockDataCache = blockDataCache;
+    this.rpcPermits = new Semaphore(maxConcurrency, true);
+    // Threads are cheap compared to the calls and only wait for permits. A bounded pool could
+    // deadlock when asynchronous calls wait for nested batches.
+    this.executor =
+        Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("bitcoin-rpc-%d").build());
+    this.rpcMetrics = new BitcoinRpcMetrics(metricRegistry);
+    metricRegistry.gauge(
+        name(BitcoinRpcMetrics.PREFIX, "block-cache", "hit-rate"),
+        () -> (Gauge<Double>) () -> blockDataCache.getStats().hitRate());
+  }
+
+  /**
+   * Runs blocking calls of this client without blocking the caller. The number of concurrent
+   * calls stays bounded by maxConcurrency.
+   */
+  public <T> CompletableFuture<T> supplyAsync(Supplier<T> calls) {
+    return CompletableFuture.supplyAsync(calls, executor);
+  }
+
+  public CompletableFuture<List<TxRef>> listUTXOsAsync(
+      int minConfirmation, Collection<String> addresses) {
+    return supplyAsync(() -> listUTXOs(minConfirmation, addresses));
+  }
+
+  public CompletableFuture<Object> sendRawTransactionAsync(String rawTx) {
+    return supplyAsync(() -> sendRawTransaction(rawTx));
   }
 
   // https://bitcoin.org/en/glossary/watch-only-address
   // imported address does not influence wallet balance
   public void importAddress(String address) {
-    queryResult("importaddress", address, "", true, false);
+    importAddress(address, true);
+  }
+
+  // without a rescan, only transactions after the import are seen, which is enough for an address
+  // that was never used
+  public void importAddress(String address, boolean rescan) {
+    queryResult("importaddress", address, "", rescan, false);
   }
 
   public long getReceivedByAddress(int minConfirmation, String address) {
@@ -49,45 +109,337 @@ public class BitcoinClient {
     return btcToSatoshi(BigDecimal.valueOf(response));
   }
 
+  /**
+   * Estimates the fee rate, in satoshi per 1000 virtual bytes, for a confirmation within
+   * confTarget blocks. Empty if bitcoind has not seen enough transactions to estimate (e.g. on
+   * regtest).
+   */
+  public OptionalLong estimateSmartFee(int confTarget) {
+    JSONObject estimate = queryResult("estimatesmartfee", confTarget);
+    if (estimate == null || estimate.get("feerate") == null) {
+      return OptionalLong.empty();
+    }
+    double feeRate = ((Number) estimate.get("feerate")).doubleValue();
+    return OptionalLong.of(btcToSatoshi(BigDecimal.valueOf(feeRate)));
+  }
+
   public void generate(int blockNumber, String address) {
     queryResult("generatetoaddress", blockNumber, address);
   }
 
   public Iterable<TxRef> listUTXOs(int minConfirmation, String address) {
-    JSONArray result =
-        queryResult(
-            "listunspent",
-            minConfirmation,
-            999999,
-            Collections.singletonList(
-                address)); // TODO(demian) maxConfirmation should depend on block height to skip
-    // processed UTXOs
-    Stream<JSONObject> transactions = result.stream();
-    return transactions.map(x -> toTxRef(address, x, minConfirmation)).collect(Collectors.toList());
+    return listUTXOs(minConfirmation, Collections.singletonList(address));
+  }
+
+  /**
+   * Lists the unspent outputs of all the given addresses with a single listunspent call. This is a
+   * full scan, see IncrementalUtxoScanner for skipping already processed blocks.
+   */
+  public List<TxRef> listUTXOs(int minConfirmation, Collection<String> addresses) {
+    List<TxRef> txRefs = new ArrayList<>();
+    forEachUTXO(minConfirmation, addresses, txRefs::add);
+    return txRefs;
+  }
+
+  /**
+   * Like listUTXOs, but passes the unspent outputs to the consumer instead of collecting them. The
+   * addresses are listed in pages of at most maxBatchSize addresses, one page after the other. A
+   * response is decoded while it is being read, keeping only the fields of each output that are
+   * used, and its outputs are enriched and passed on before the next page is listed. Memory use is
+   * therefore bounded by the outputs of one page, not by the size of the wallet. Without
+   * addresses, the whole wallet is listed with a single call.
+   */
+  public void forEachUTXO(
+      int minConfirmation, Collection<String> addresses, Consumer<TxRef> consumer) {
+    long tipHeight = syncBlockCache();
+    List<List<String>> pages =
+        addresses.isEmpty()
+            ? Collections.singletonList(Collections.emptyList())
+            : Lists.partition(new ArrayList<>(addresses), maxBatchSize);
+    long count = 0;
+    for (List<String> page : pages) {
+      List<UnspentOutput> outputs = listUnspent(minConfirmation, page);
+      count += outputs.size();
+      for (List<UnspentOutput> chunk : Lists.partition(outputs, maxBatchSize)) {
+        toTxRefs(chunk, minConfirmation, tipHeight).forEach(consumer);
+      }
+    }
+    logger.debug("Streamed {} unspent outputs of {} addresses.", count, addresses.size());
+  }
+
+  // One listunspent call, decoded while the response is being read.
+  private List<UnspentOutput> listUnspent(int minConfirmation, List<String> addresses) {
+    StringBuilder body = new StringBuilder(64 + 40 * addresses.size());
+    BitcoinRpcTransport.appendRequest(
+        body, "listunspent", "CNS-RefApp", Arrays.asList(minConfirmation, 999999, addresses));
+    BitcoinRpcMetrics.MethodMetrics metrics = rpcMetrics.of("listunspent");
+    List<UnspentOutput> outputs = new ArrayList<>();
+    UnspentOutputDecoder decoder =
+        new UnspentOutputDecoder(
+            output ->
+                outputs.add(
+                    new UnspentOutput(
+                        (String) output.get("txid"),
+                        (Long) output.get("vout"),
+                        (String) output.get("address"),
+                        btcToSatoshi(BigDecimal.valueOf((Double) output.get("amount"))),
+                        (String) output.get("scriptPubKey"))));
+    metrics.onRequest(1, body.length());
+    rpcPermits.acquireUninterruptibly();
+    long start = System.nanoTime();
+    try {
+      transport.postStreaming(body, decoder, metrics::onResponse);
+    } catch (RuntimeException e) {
+      metrics.onErrors(1);
+      throw e;
+    } finally {
+      metrics.onLatency(System.nanoTime() - start);
+      rpcPermits.release();
+    }
+    decoder
+        .getError()
+        .ifPresent(
+            error -> {
+              metrics.onErrors(1);
+              throw new RuntimeException("listunspent failed: " + error.get("message"));
+            });
+    return outputs;
+  }
+
+  public long getBlockCount() {
+    return queryResult("getblockcount");
+  }
+
+  public String getBlockHash(long height) {
+    return queryResult("getblockhash", height);
+  }
+
+  public long getBlockHeight(String blockHash) {
+    return getHeaders(Collections.singleton(blockHash)).get(blockHash).getHeight();
+  }
+
+  /**
+   * Lists the wallet transactions in blocks after the given one (including the mempool), and the
+   * transactions removed by a reorg if the given block is not on the main chain anymore.
+   */
+  public JSONObject listSinceBlock(String blockHash) {
+    return queryResult("listsinceblock", blockHash, 1, true, true);
+  }
+
+  /** Returns the wallet outputs spent by the given wallet transactions. */
+  public Set<UtxoId> getSpentOutputs(Collection<String> txids) {
+    List<String> rawTransactions = new ArrayList<>();
+    queryBatch("gettransaction", txids, txid -> Arrays.asList(txid, true))
+        .forEach(
+            (txid, result) -> {
+              JSONObject transactionDetail = (JSONObject) result;
+              // the fee is only reported for transactions spending outputs of the wallet
+              if (transactionDetail != null && transactionDetail.containsKey("fee")) {
+                rawTransactions.add((String) transactionDetail.get("hex"));
+              }
+            });
+    Set<UtxoId> spentOutputs = new HashSet<>();
+    for (Object result : queryBatch("decoderawtransaction", rawTransactions).values()) {
+      for (Object input : (JSONArray) ((JSONObject) result).get("vin")) {
+        JSONObject jsonInput = (JSONObject) input;
+        if (jsonInput.containsKey("txid")) {
+          spentOutputs.add(
+              new UtxoId((String) jsonInput.get("txid"), (Long) jsonInput.get("vout")));
+        }
+      }
+    }
+    return spentOutputs;
   }
 
-  private TxRef toTxRef(String address, JSONObject x, int minConfirmation) {
-    long outputIdx = (Long) x.get("vout");
-    long value = btcToSatoshi(BigDecimal.valueOf((Double) x.get("amount")));
-    String scriptPubKey = (String) x.get("scriptPubKey");
-    String txid = (String) x.get("txid");
+  /**
+   * Looks up the given outputs with gettxout and returns those that are unspent (also in the
+   * mempool), have at least minConfirmation confirmations and belong to one of the addresses.
+   */
+  public List<TxRef> getUnspentOutputs(
+      int minConfirmation, Collection<UtxoId> utxoIds, Set<String> addresses) {
+    List<UnspentOutput> outputs = new ArrayList<>();
+    queryBatch(
+            "gettxout",
+            utxoIds,
+            utxoId -> Arrays.asList(utxoId.getTxHash(), utxoId.getOutputIdx(), true))
+        .forEach(
+            (utxoId, result) -> {
+              JSONObject txOut = (JSONObject) result;
+              if (txOut == null || (Long) txOut.get("confirmations") < minConfirmation) {
+                return;
+              }
+              JSONObject scriptPubKey = (JSONObject) txOut.get("scriptPubKey");
+              JSONArray scriptAddresses = (JSONArray) scriptPubKey.get("addresses");
+              if (scriptAddresses == null
+                  || scriptAddresses.size() != 1
+                  || !addresses.contains(scriptAddresses.get(0))) {
+                return;
+              }
+              outputs.add(
+                  new UnspentOutput(
+                      utxoId.getTxHash(),
+                      utxoId.getOutputIdx(),
+                      (String) scriptAddresses.get(0),
+                      btcToSatoshi(BigDecimal.valueOf((Double) txOut.get("value"))),
+                      (String) scriptPubKey.get("hex")));
+            });
+    return toTxRefs(outputs, minConfirmation, syncBlockCache());
+  }
+
+  // Enriches the unspent outputs with block data. Every lookup step is a batched JSON-RPC call
+  // over the distinct keys of the previous step that are not in the block cache, so the number of
+  // round-trips depends on the batch size rather than on the number of outputs. Outputs whose
+  // block is unknown (unconfirmed, or reorged out since they were listed) are skipped. The tip
+  // height is that of syncBlockCache, which is called once per scan.
+  private List<TxRef> toTxRefs(List<UnspentOutput> outputs, int minConfirmation, long tipHeight) {
+    Set<String> txids = new LinkedHashSet<>();
+    for (UnspentOutput output : outputs) {
+      txids.add(output.txid);
+    }
+    Map<String, String> blockHashByTxid = getBlockHashesOfTransactions(txids, tipHeight);
+    Map<String, BlockHeader> blocks = getHeaders(new LinkedHashSet<>(blockHashByTxid.values()));
+
+    Set<Long> confirmationHeights = new LinkedHashSet<>();
+    for (BlockHeader block : blocks.values()) {
+      confirmationHeights.add(block.getHeight() + minConfirmation);
+    }
+    Map<Long, String> confirmationBlockHashes = getBlockHashes(confirmationHeights, tipHeight);
+    Map<String, BlockHeader> confirmationBlocks =
+        getHeaders(new LinkedHashSet<>(confirmationBlockHashes.values()));
 
-    JSONObject transactionDetail = queryResult("gettransaction", txid);
-    String blockHash = (String) transactionDetail.get("blockhash");
-    JSONObject block = queryResult("getblockheader", blockHash);
+    List<TxRef> txRefs = new ArrayList<>(outputs.size());
+    for (UnspentOutput output : outputs) {
+      String txid = output.txid;
+      long outputIdx = output.vout;
 
-    long blockHeight = (Long) block.get("height");
+      String blockHash = blockHashByTxid.get(txid);
+      BlockHeader block = blockHash != null ? blocks.get(blockHash) : null;
+      if (block == null) {
+        logger.debug("Skipping output {}:{}, its block is unknown.", txid, outputIdx);
+        continue;
+      }
+      long blockHeight = block.getHeight();
 
-    String confirmationBlockHash = queryResult("getblockhash", blockHeight + minConfirmation);
-    Optional<Instant> confirmed;
-    if (confirmationBlockHash == null) {
-      confirmed = Optional.empty();
-    } else {
-      JSONObject confirmationBlock = queryResult("getblockheader", confirmationBlockHash);
-      confirmed = Optional.of(Instant.ofEpochMilli((Long) confirmationBlock.get("time")));
+      String confirmationBlockHash = confirmationBlockHashes.get(blockHeight + minConfirmation);
+      Optional<Instant> confirmed;
+      if (confirmationBlockHash == null) {
+        confirmed = Optional.empty();
+      } else {
+        BlockHeader confirmationBlock = confirmationBlocks.get(confirmationBlockHash);
+        confirmed = Optional.of(Instant.ofEpochMilli(confirmationBlock.getTime()));
+      }
+
+      txRefs.add(
+          new TxRef(
+              output.address,
+              txid,
+              outputIdx,
+              blockHeight,
+              output.value,
+              confirmed,
+              output.scriptPubKey));
     }
+    logger.debug("Block cache stats: {}", blockDataCache.getStats());
+    return txRefs;
+  }
 
-    return new TxRef(address, txid, outputIdx, blockHeight, value, confirmed, scriptPubKey);
+  // Returns the current tip height (unbounded without a cache) and drops the cached block data if
+  // a reorg changed the anchor block.
+  private long syncBlockCache() {
+    if (!blockDataCache.isEnabled()) {
+      return Long.MAX_VALUE;
+    }
+    long tipHeight = queryResult("getblockcount");
+    OptionalLong anchorHeight = blockDataCache.getAnchorHeight();
+    if (anchorHeight.isPresent()) {
+      String anchorHash =
+          anchorHeight.getAsLong() <= tipHeight
+              ? queryResult("getblockhash", anchorHeight.getAsLong())
+              : null;
+      blockDataCache.checkAnchor(anchorHash);
+    }
+    return tipHeight;
+  }
+
+  // The height of a block is taken from the transaction if bitcoind returns it (0.20 and later),
+  // or derived from its confirmations otherwise.
+  private Map<String, String> getBlockHashesOfTransactions(Set<String> txids, long tipHeight) {
+    Map<String, String> blockHashByTxid = new HashMap<>();
+    List<String> misses = new ArrayList<>();
+    for (String txid : txids) {
+      String blockHash = blockDataCache.getBlockHashOfTransaction(txid);
+      if (blockHash == null) {
+        misses.add(txid);
+      } else {
+        blockHashByTxid.put(txid, blockHash);
+      }
+    }
+    queryBatch("gettransaction", misses)
+        .forEach(
+            (txid, result) -> {
+              JSONObject transactionDetail = (JSONObject) result;
+              // unconfirmed transactions have no block, failed calls no result
+              String blockHash =
+                  transactionDetail != null ? (String) transactionDetail.get("blockhash") : null;
+              if (blockHash == null) {
+                return;
+              }
+              long confirmations = (Long) transactionDetail.get("confirmations");
+              Long blockHeight = (Long) transactionDetail.get("blockheight");
+              blockHashByTxid.put(txid, blockHash);
+              blockDataCache.putBlockHashOfTransaction(
+                  txid,
+                  blockHash,
+                  blockHeight != null ? blockHeight : tipHeight - confirmations + 1,
+                  confirmations);
+            });
+    return blockHashByTxid;
+  }
+
+  private Map<String, BlockHeader> getHeaders(Set<String> blockHashes) {
+    Map<String, BlockHeader> headers = new HashMap<>();
+    List<String> misses = new ArrayList<>();
+    for (String blockHash : blockHashes) {
+      BlockHeader header = blockDataCache.getHeader(blockHash);
+      if (header == null) {
+        misses.add(blockHash);
+      } else {
+        headers.put(blockHash, header);
+      }
+    }
+    queryBatch("getblockheader", misses)
+        .forEach(
+            (blockHash, result) -> {
+              JSONObject block = (JSONObject) result;
+              BlockHeader header =
+                  new BlockHeader((Long) block.get("height"), (Long) block.get("time"));
+              headers.put(blockHash, header);
+              blockDataCache.putHeader(blockHash, header, (Long) block.get("confirmations"));
+            });
+    return headers;
+  }
+
+  // Heights above the tip are missing from the result.
+  private Map<Long, String> getBlockHashes(Set<Long> heights, long tipHeight) {
+    Map<Long, String> blockHashes = new HashMap<>();
+    List<Long> misses = new ArrayList<>();
+    for (Long height : heights) {
+      String blockHash = blockDataCache.getBlockHash(height);
+      if (blockHash != null) {
+        blockHashes.put(height, blockHash);
+      } else if (height <= tipHeight) {
+        misses.add(height);
+      }
+    }
+    queryBatch("getblockhash", misses)
+        .forEach(
+            (height, result) -> {
+              if (result != null) {
+                blockHashes.put(height, (String) result);
+                blockDataCache.putBlockHash(height, (String) result, tipHeight);
+              }
+            });
+    return blockHashes;
   }
 
   private long btcToSatoshi(BigDecimal amount) {
@@ -103,38 +455,106 @@ public class BitcoinClient {
   }
 
   private JSONObject query(String method, Object... params) {
-    HttpResponse response;
-    try {
-      Request request =
-          Request.Post(bitcoinUrl)
-              .addHeader("Authorization", authInfo)
-              .addHeader("Content-Type", "text/plain")
-              .bodyString(createJsonBody(method, params), ContentType.APPLICATION_JSON);
-      response = request.execute().returnResponse();
-    } catch (IOException e) {
-      throw new RuntimeException(e.getMessage(), e.getCause());
+    StringBuilder body = new StringBuilder(128);
+    BitcoinRpcTransport.appendRequest(body, method, "CNS-RefApp", Arrays.asList(params));
+    JSONObject response = (JSONObject) post(method, 1, body);
+    if (response.get("error") != null) {
+      rpcMetrics.of(method).onErrors(1);
+    }
+    return response;
+  }
+
+  /**
+   * Calls a single-parameter method once for every parameter using JSON-RPC batch requests of at
+   * most maxBatchSize calls each. Failed calls are missing from the result (ConcurrentHashMap does
+   * not take nulls), which reads as null, like in queryResult.
+   */
+  private <K> Map<K, Object> queryBatch(String method, Collection<K> params) {
+    return queryBatch(method, params, Collections::singletonList);
+  }
+
+  /**
+   * Like queryBatch, but toParams maps every key to the parameter list of its call. Batches are
+   * sent concurrently.
+   */
+  private <K> Map<K, Object> queryBatch(
+      String method, Collection<K> keys, Function<K, List<?>> toParams) {
+    Map<K, Object> results = new ConcurrentHashMap<>();
+    List<K> keyList = new ArrayList<>(keys);
+    List<List<K>> chunks = Lists.partition(keyList, maxBatchSize);
+    if (chunks.size() == 1) {
+      queryChunk(method, chunks.get(0), toParams, results);
+    } else if (chunks.size() > 1) {
+      CompletableFuture.allOf(
+              chunks.stream()
+                  .map(
+                      chunk ->
+                          CompletableFuture.runAsync(
+                              () -> queryChunk(method, chunk, toParams, results), executor))
+                  .toArray(CompletableFuture[]::new))
+          .join();
+    }
+    return results;
+  }
+
+  private <K> void queryChunk(
+      String method, List<K> keys, Function<K, List<?>> toParams, Map<K, Object> results) {
+    StringBuilder body = new StringBuilder(keys.size() * 128).append('[');
+    for (int i = 0; i < keys.size(); i++) {
+      if (i > 0) {
+        body.append(',');
+      }
+      BitcoinRpcTransport.appendRequest(
+          body, method, String.valueOf(i), toParams.apply(keys.get(i)));
     }
-    return (JSONObject) parse(response);
+    body.append(']');
+    // bitcoind does not guarantee the order of the responses, hence the correlation by id
+    long errors = 0;
+    for (Object response : (JSONArray) post(method, keys.size(), body)) {
+      JSONObject jsonResponse = (JSONObject) response;
+      if (jsonResponse.get("error") != null) {
+        errors++;
+      }
+      int idx = Integer.parseInt((String) jsonResponse.get("id"));
+      Object result = jsonResponse.get("result");
+      if (result != null) {
+        results.put(keys.get(idx), result);
+      }
+    }
+    rpcMetrics.of(method).onErrors(errors);
   }
 
-  private Object parse(HttpResponse httpResponse) {
+  private Object post(String method, int callCount, CharSequence body) {
+    BitcoinRpcMetrics.MethodMetrics metrics = rpcMetrics.of(method);
+    metrics.onRequest(callCount, body.length());
+    rpcPermits.acquireUninterruptibly();
+    long start = System.nanoTime();
     try {
-      return new JSONParser().parse(new InputStreamReader(httpResponse.getEntity().getContent()));
-    } catch (Exception e) {
-      throw new RuntimeException(e.getMessage(), e.getCause());
-    }
-  }
-
-  private String createJsonBody(String method, Object... params) {
-    Map<String, Object> parts =
-        new HashMap<String, Object>() {
-          {
-            this.put("jsonrpc", "1.0");
-            this.put("id", "CNS-RefApp");
-            this.put("method", method);
-            this.put("params", Arrays.asList(params));
-          }
-        };
-    return JSONObject.toJSONString(parts);
+      return transport.post(body, metrics::onResponse);
+    } catch (RuntimeException e) {
+      metrics.onErrors(callCount);
+      throw e;
+    } finally {
+      metrics.onLatency(System.nanoTime() - start);
+      rpcPermits.release();
+    }
+  }
+
+  // The fields of an unspent output that are used, as listed by listunspent or gettxout.
+  private static final class UnspentOutput {
+    private final String txid;
+    private final long vout;
+    private final String address;
+    private final long value;
+    private final String scriptPubKey;
+
+    private UnspentOutput(
+        String txid, long vout, String address, long value, String scriptPubKey) {
+      this.txid = txid;
+      this.vout = vout;
+      this.address = address;
+      this.value = value;
+      this.scriptPubKey = scriptPubKey;
+    }
   }
 }
@@ -0,0 +1,72 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.bitcoin;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics of the bitcoind JSON-RPC calls, per method: latency of the HTTP requests, number of
+ * calls (a batch request contains several), batch sizes, request and response sizes in bytes, and
+ * failed calls, either JSON-RPC errors or transport failures.
+ */
+class BitcoinRpcMetrics {
+  static final String PREFIX = "bitcoin.rpc";
+
+  class MethodMetrics {
+    private final Timer latency;
+    private final Meter calls;
+    private final Histogram batchSize;
+    private final Histogram requestSize;
+    private final Histogram responseSize;
+    private final Counter errors;
+
+    private MethodMetrics(String method) {
+      latency = registry.timer(name(PREFIX, method, "latency"));
+      calls = registry.meter(name(PREFIX, method, "calls"));
+      batchSize = registry.histogram(name(PREFIX, method, "batch-size"));
+      requestSize = registry.histogram(name(PREFIX, method, "request-size"));
+      responseSize = registry.histogram(name(PREFIX, method, "response-size"));
+      errors = registry.counter(name(PREFIX, method, "errors"));
+    }
+
+    void onRequest(int callCount, long size) {
+      calls.mark(callCount);
+      batchSize.update(callCount);
+      requestSize.update(size);
+    }
+
+    void onLatency(long nanos) {
+      latency.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    void onResponse(long size) {
+      responseSize.update(size);
+    }
+
+    void onErrors(long count) {
+      errors.inc(count);
+    }
+  }
+
+  private final MetricRegistry registry;
+  private final ConcurrentMap<String, MethodMetrics> methodMetrics = new ConcurrentHashMap<>();
+
+  BitcoinRpcMetrics(MetricRegistry registry) {
+    this.registry = registry;
+  }
+
+  MethodMetrics of(String method) {
+    return methodMetrics.computeIfAbsent(method, MethodMetrics::new);
+  }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.bitcoin;
+
+import com.google.common.io.CountingInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeader;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * HTTP transport of the bitcoind JSON-RPC interface. Connections are pooled and kept alive across
+ * calls, so that the latency of a call is dominated by bitcoind itself.
+ */
+public class BitcoinRpcTransport implements Closeable {
+  public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5_000;
+  public static final int DEFAULT_SOCKET_TIMEOUT_MILLIS = 60_000;
+  public static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+  // bitcoind closes idle connections after 30 seconds (-rpcservertimeout), release them earlier
+  private static final long KEEP_ALIVE_MILLIS = 20_000;
+
+  private final String bitcoinUrl;
+  private final CloseableHttpClient httpClient;
+
+  public BitcoinRpcTransport(String bitcoinUrl, String userName, String password) {
+    this(
+        bitcoinUrl,
+        userName,
+        password,
+        DEFAULT_CONNECT_TIMEOUT_MILLIS,
+        DEFAULT_SOCKET_TIMEOUT_MILLIS,
+        DEFAULT_MAX_CONNECTIONS);
+  }
+
+  public BitcoinRpcTransport(
+      String bitcoinUrl,
+      String userName,
+      String password,
+      int connectTimeoutMillis,
+      int socketTimeoutMillis,
+      int maxConnections) {
+    this.bitcoinUrl = bitcoinUrl;
+
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnections);
+    connectionManager.setValidateAfterInactivity((int) KEEP_ALIVE_MILLIS / 2);
+
+    RequestConfig requestConfig =
+        RequestConfig.custom()
+            .setConnectTimeout(connectTimeoutMillis)
+            .setConnectionRequestTimeout(connectTimeoutMillis)
+            .setSocketTimeout(socketTimeoutMillis)
+            .build();
+
+    this.httpClient =
+        HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .setDefaultHeaders(
+                Collections.singletonList(
+                    new BasicHeader(HttpHeaders.AUTHORIZATION, createAuthInfo(userName, password))))
+            .setKeepAliveStrategy((response, context) -> KEEP_ALIVE_MILLIS)
+            .evictIdleConnections(KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS)
+            .build();
+  }
+
+  private static String createAuthInfo(String userName, String password) {
+    return String.format(
+        "Basic %s",
+        Base64.getEncoder()
+            .encodeToString(
+                String.format("%s:%s", userName, password).getBytes(StandardCharsets.UTF_8)));
+  }
+
+  /** Appends a JSON-RPC request to the body of a (batch) request. */
+  public static StringBuilder appendRequest(
+      StringBuilder body, String method, String id, List<?> params) {
+    return body.append("{\"jsonrpc\":\"1.0\",\"id\":\"")
+        .append(JSONValue.escape(id))
+        .append("\",\"method\":\"")
+        .append(JSONValue.escape(method))
+        .append("\",\"params\":")
+        .append(JSONValue.toJSONString(params))
+        .append('}');
+  }
+
+  /** Posts a JSON-RPC request and returns the parsed JSON response. */
+  public Object post(CharSequence jsonBody) {
+    return post(jsonBody, responseSize -> {});
+  }
+
+  /** Like post, and reports the size of the response body in bytes to responseSizeListener. */
+  public Object post(CharSequence jsonBody, LongConsumer responseSizeListener) {
+    return execute(jsonBody, reader -> new JSONParser().parse(reader), responseSizeListener);
+  }
+
+  /**
+   * Posts a JSON-RPC request and passes the response to the handler while it is being read,
+   * without building a JSON tree.
+   */
+  public void postStreaming(CharSequence jsonBody, ContentHandler handler) {
+    postStreaming(jsonBody, handler, responseSize -> {});
+  }
+
+  public void postStreaming(
+      CharSequence jsonBody, ContentHandler handler, LongConsumer responseSizeListener) {
+    execute(
+        jsonBody,
+        reader -> {
+          new JSONParser().parse(reader, handler);
+          return null;
+        },
+        responseSizeListener);
+  }
+
+  private interface ResponseParser<T> {
+    T parse(Reader reader) throws IOException, ParseException;
+  }
+
+  private <T> T execute(
+      CharSequence jsonBody,
+      ResponseParser<T> responseParser,
+      LongConsumer responseSizeListener) {
+    ResponseHandler<T> parser =
+        response -> {
+          HttpEntity entity = response.getEntity();
+          CountingInputStream content = new CountingInputStream(entity.getContent());
+          try (Reader reader =
+              new BufferedReader(new InputStreamReader(content, StandardCharsets.UTF_8))) {
+            return responseParser.parse(reader);
+          } catch (ParseException e) {
+            throw new IOException("Invalid JSON-RPC response: " + e, e);
+          } finally {
+            responseSizeListener.accept(content.getCount());
+          }
+        };
+    HttpPost request = new HttpPost(bitcoinUrl);
+    request.setEntity(new StringEntity(jsonBody.toString(), ContentType.APPLICATION_JSON));
+    try {
+      return httpClient.execute(request, parser);
+    } catch (IOException e) {
+      throw new RuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    httpClient.close();
+  }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.bitcoin;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import java.util.OptionalLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded cache of the block data BitcoinClient needs to enrich unspent outputs. Only data of
+ * blocks at least safeDepth deep is cached, as it does not change unless a deeper reorg happens.
+ * Every put records the height and hash of its block, and the highest one serves as an anchor: if
+ * the hash of the anchor height changes, everything is dropped.
+ */
+public class BlockDataCache {
+  private static final Logger logger = LoggerFactory.getLogger(BlockDataCache.class);
+
+  public static class BlockHeader {
+    private final long height;
+    private final long time;
+
+    public BlockHeader(long height, long time) {
+      this.height = height;
+      this.time = time;
+    }
+
+    public long getHeight() {
+      return height;
+    }
+
+    public long getTime() {
+      return time;
+    }
+  }
+
+  private final long maxSize;
+  private final int safeDepth;
+  private final Cache<String, String> blockHashByTxid;
+  private final Cache<String, BlockHeader> headerByBlockHash;
+  private final Cache<Long, String> blockHashByHeight;
+  private long anchorHeight = -1;
+  private String anchorHash;
+
+  public BlockDataCache(long maxSize, int safeDepth) {
+    if (safeDepth < 1) {
+      throw new IllegalArgumentException("safeDepth must be positive: " + safeDepth);
+    }
+    this.maxSize = maxSize;
+    this.safeDepth = safeDepth;
+    this.blockHashByTxid = CacheBuilder.newBuilder().maximumSize(maxSize).recordStats().build();
+    this.headerByBlockHash = CacheBuilder.newBuilder().maximumSize(maxSize).recordStats().build();
+    this.blockHashByHeight = CacheBuilder.newBuilder().maximumSize(maxSize).recordStats().build();
+  }
+
+  public static BlockDataCache disabled() {
+    return new BlockDataCache(0, 1);
+  }
+
+  public boolean isEnabled() {
+    return maxSize > 0;
+  }
+
+  public String getBlockHashOfTransaction(String txid) {
+    return blockHashByTxid.getIfPresent(txid);
+  }
+
+  public synchronized void putBlockHashOfTransaction(
+      String txid, String blockHash, long blockHeight, long confirmations) {
+    if (isEnabled() && blockHash != null && isSafe(confirmations)) {
+      blockHashByTxid.put(txid, blockHash);
+      anchor(blockHeight, blockHash);
+    }
+  }
+
+  public BlockHeader getHeader(String blockHash) {
+    return headerByBlockHash.getIfPresent(blockHash);
+  }
+
+  public synchronized void putHeader(String blockHash, BlockHeader header, long confirmations) {
+    if (isEnabled() && isSafe(confirmations)) {
+      headerByBlockHash.put(blockHash, header);
+      anchor(header.getHeight(), blockHash);
+    }
+  }
+
+  public String getBlockHash(long height) {
+    return blockHashByHeight.getIfPresent(height);
+  }
+
+  public synchronized void putBlockHash(long height, String blockHash, long tipHeight) {
+    if (isEnabled() && blockHash != null && isSafe(tipHeight - height + 1)) {
+      blockHashByHeight.put(height, blockHash);
+      anchor(height, blockHash);
+    }
+  }
+
+  public synchronized OptionalLong getAnchorHeight() {
+    return anchorHeight < 0 ? OptionalLong.empty() : OptionalLong.of(anchorHeight);
+  }
+
+  /**
+   * Compares the current hash of the anchor height with the cached one and drops all cached data
+   * if they differ, i.e. a reorg deeper than safeDepth happened.
+   */
+  public synchronized void checkAnchor(String currentAnchorHash) {
+    if (anchorHash != null && !anchorHash.equals(currentAnchorHash)) {
+      logger.warn(
+          "Reorg detected at height {} (expected block {}, found {}), invalidating block cache.",
+          anchorHeight,
+          anchorHash,
+          currentAnchorHash);
+      invalidateAll();
+    }
+  }
+
+  public synchronized void invalidateAll() {
+    blockHashByTxid.invalidateAll();
+    headerByBlockHash.invalidateAll();
+    blockHashByHeight.invalidateAll();
+    anchorHeight = -1;
+    anchorHash = null;
+  }
+
+  public CacheStats getStats() {
+    return blockHashByTxid.stats().plus(headerByBlockHash.stats()).plus(blockHashByHeight.stats());
+  }
+
+  private void anchor(long height, String blockHash) {
+    if (height > anchorHeight) {
+      anchorHeight = height;
+      anchorHash = blockHash;
+    }
+  }
+
+  private boolean isSafe(long confirmations) {
+    return confirmations >= safeDepth;
+  }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.bitcoin;
+
+import bitcoin.types.BitcoinAddress;
+import fr.acinq.bitcoin.BinaryData;
+import fr.acinq.bitcoin.Crypto;
+import fr.acinq.bitcoin.DeterministicWallet;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Change addresses derived from a seed (BIP32, internal chain m/0'/1/i), so that a fresh change
+ * address is taken from a local pool instead of being searched among the owned addresses. The
+ * addresses are derived in chunks, which are imported into the bitcoind wallet (without a rescan)
+ * and registered on the ledger before they enter the pool; a new chunk is derived when fewer than
+ * half a chunk of addresses are left (a chunk size of 0 disables the derivation). The next
+ * derivation index is stored next to the seed, so no index is derived twice. Keys of other
+ * addresses are looked up in the given key provider.
+ */
+public class ChangeAddressWallet implements KeyProvider {
+  private static final Logger logger = LoggerFactory.getLogger(ChangeAddressWallet.class);
+  private static final int SEED_SIZE = 32;
+
+  private final KeyProvider keyProvider;
+  private final BitcoinClient bitcoinClient;
+  private final DeterministicWallet.ExtendedPrivateKey changeChain;
+  private final Path stateFile;
+  private final int chunkSize;
+  private final AddressType addressType;
+  private final Network network;
+  private final Map<String, Crypto.PrivateKey> derivedKeys = new ConcurrentHashMap<>();
+  private int nextIndex;
+  // derived addresses not seen on the ledger yet, and those of them registered by this instance
+  private final Set<String> unregistered = new LinkedHashSet<>();
+  private final Set<String> registering = new HashSet<>();
+  private final Deque<String> unusedAddresses = new ArrayDeque<>();
+
+  private ChangeAddressWallet(
+      KeyProvider keyProvider,
+      BitcoinClient bitcoinClient,
+      BinaryData seed,
+      Path stateFile,
+      int nextIndex,
+      int chunkSize,
+      AddressType addressType,
+      Network network) {
+    this.keyProvider = keyProvider;
+    this.bitcoinClient = bitcoinClient;
+    DeterministicWallet.ExtendedPrivateKey master = DeterministicWallet.generate(seed);
+    this.changeChain =
+        DeterministicWallet.derivePrivateKey(
+            DeterministicWallet.derivePrivateKey(master, DeterministicWallet.hardened(0)), 1);
+    this.stateFile = stateFile;
+    this.chunkSize = chunkSize;
+    this.addressType = addressType;
+    this.network = network;
+    for (int i = 0; i < nextIndex; i++) {
+      unregistered.add(derive(i));
+    }
+    this.nextIndex = nextIndex;
+  }
+
+  /**
+   * Opens the wallet of the seed file (hex), which is generated if it is missing. The derivation
+   * index is kept in seedFile.state. The keys are compressed, so they can be used for addresses of
+   * either type.
+   */
+  public static ChangeAddressWallet open(
+      KeyProvider keyProvider,
+      BitcoinClient bitcoinClient,
+      String seedFile,
+      int chunkSize,
+      AddressType addressType,
+      Network network)
+      throws IOException {
+    Path seedPath = Paths.get(seedFile);
+    if (!Files.exists(seedPath)) {
+      byte[] seed = new byte[SEED_SIZE];
+      new SecureRandom().nextBytes(seed);
+      write(seedPath, KeyStore.toHex(seed));
+      logger.info("Generated the change address seed {}.", seedPath);
+    }
+    BinaryData seed = BinaryData.apply(read(seedPath));
+    Path stateFile = Paths.get(seedFile + ".state");
+    int nextIndex = Files.exists(stateFile) ? Integer.parseInt(read(stateFile)) : 0;
+    return new ChangeAddressWallet(
+        keyProvider, bitcoinClient, seed, stateFile, nextIndex, chunkSize, addressType, network);
+  }
+
+  @Override
+  public Optional<Crypto.PrivateKey> getPrivateKey(String address) {
+    Crypto.PrivateKey privateKey = derivedKeys.get(address);
+    return privateKey != null ? Optional.of(privateKey) : keyProvider.getPrivateKey(address);
+  }
+
+  /** A change address that was not used before, or empty if the pool is exhausted. */
+  public synchronized Optional<BitcoinAddress> nextChangeAddress() {
+    return Optional.ofNullable(unusedAddresses.poll()).map(BitcoinAddress::new);
+  }
+
+  /**
+   * Moves the derived addresses that are registered on the ledger into the pool, if they are still
+   * unused, and returns the addresses to register: those derived before but never seen on the
+   * ledger, and a new chunk if the pool runs low. The addresses to register are imported into the
+   * bitcoind wallet first, so that the UTXOs sent to them are listed; if the import fails, they are
+   * returned again by the next call.
+   */
+  public List<BitcoinAddress> refill(Set<String> registered, Set<String> unused)
+      throws IOException {
+    List<BitcoinAddress> toRegister = collect(registered, unused);
+    try {
+      for (BitcoinAddress address : toRegister) {
+        bitcoinClient.importAddress(address.unpack, false);
+      }
+    } catch (RuntimeException e) {
+      synchronized (this) {
+        toRegister.forEach(address -> registering.remove(address.unpack));
+      }
+      throw e;
+    }
+    return toRegister;
+  }
+
+  private synchronized List<BitcoinAddress> collect(Set<String> registered, Set<String> unused)
+      throws IOException {
+    List<BitcoinAddress> toRegister = new ArrayList<>();
+    for (String address : new ArrayList<>(unregistered)) {
+      if (registered.contains(address)) {
+        unregistered.remove(address);
+        registering.remove(address);
+        if (unused.contains(address)) {
+          unusedAddresses.add(address);
+        }
+      } else if (registering.add(address)) {
+        toRegister.add(new BitcoinAddress(address));
+      }
+    }
+    if (unusedAddresses.size() + registering.size() < (chunkSize + 1) / 2) {
+      // the index is stored first, so that a restart never derives the chunk again
+      write(stateFile, Integer.toString(nextIndex + chunkSize));
+      for (int i = 0; i < chunkSize; i++) {
+        String address = derive(nextIndex++);
+        unregistered.add(address);
+        registering.add(address);
+        toRegister.add(new BitcoinAddress(address));
+      }
+      logger.info("Derived change addresses up to index {}.", nextIndex);
+    }
+    return toRegister;
+  }
+
+  private String derive(int index) {
+    Crypto.PrivateKey privateKey =
+        DeterministicWallet.derivePrivateKey(changeChain, index).privateKey();
+    String address = addressType.encode(network, privateKey.publicKey().hash160());
+    derivedKeys.put(address, privateKey);
+    return address;
+  }
+
+  private static String read(Path file) throws IOException {
+    return new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+  }
+
+  private static void write(Path file, String content) throws IOException {
+    Path tmpFile = Paths.get(file + ".tmp");
+    Files.write(tmpFile, content.getBytes(StandardCharsets.US_ASCII));
+    Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+  }
+}
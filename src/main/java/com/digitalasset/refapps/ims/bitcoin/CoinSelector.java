@@ -0,0 +1,230 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.bitcoin;
+
+import static com.digitalasset.refapps.ims.bitcoin.FeeEstimator.INPUT_VSIZE;
+import static com.digitalasset.refapps.ims.bitcoin.FeeEstimator.OUTPUT_VSIZE;
+import static com.digitalasset.refapps.ims.bitcoin.FeeEstimator.TX_OVERHEAD_VSIZE;
+import static com.digitalasset.refapps.ims.bitcoin.FeeEstimator.WITNESS_OVERHEAD_VSIZE;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Selects the inputs of a payment from the available coins (UTXOs by id). First, a branch-and-bound
+ * search looks for inputs matching the amount plus fee closely enough to leave out the change
+ * output. If there are none, the largest coins are used until they cover the amount, the fee and a
+ * change output. Fees are computed at the current rate of the fee estimator, with the size of
+ * every input by its type.
+ */
+public class CoinSelector {
+  // outputs below this value are not relayed by bitcoind
+  private static final long DUST_THRESHOLD = 546;
+  // limit of the branch-and-bound search, as in bitcoind
+  private static final int MAX_TRIES = 100_000;
+
+  private final FeeEstimator feeEstimator;
+
+  public CoinSelector(FeeEstimator feeEstimator) {
+    this.feeEstimator = feeEstimator;
+  }
+
+  public static class Selection {
+    private final List<String> coins;
+    private final long fee;
+
+    private Selection(List<String> coins, long fee) {
+      this.coins = coins;
+      this.fee = fee;
+    }
+
+    public List<String> getCoins() {
+      return coins;
+    }
+
+    /** The fee, including whatever is left over when there is no change output. */
+    public long getFee() {
+      return fee;
+    }
+  }
+
+  /**
+   * Selects coins to pay the amount, or empty if the coins are not sufficient. The witness coins
+   * are the pay-to-witness-pubkey-hash ones, the others are pay-to-pubkey-hash.
+   */
+  public Optional<Selection> select(
+      Map<String, Long> coins, Set<String> witnessCoins, long amount) {
+    long feeRate = feeEstimator.getFeeRate();
+    List<Map.Entry<String, Long>> candidates = new ArrayList<>(coins.entrySet());
+    candidates.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+
+    Optional<Selection> selection = selectWithoutChange(candidates, witnessCoins, amount, feeRate);
+    return selection.isPresent()
+        ? selection
+        : selectLargestFirst(candidates, witnessCoins, amount, feeRate);
+  }
+
+  private Optional<Selection> selectWithoutChange(
+      List<Map.Entry<String, Long>> candidates,
+      Set<String> witnessCoins,
+      long amount,
+      long feeRate) {
+    // the value of a coin minus the fee for spending it, the coins that do not pay for themselves
+    // are left out
+    List<String> ids = new ArrayList<>();
+    List<Long> effectiveValues = new ArrayList<>();
+    List<Long> inputFees = new ArrayList<>();
+    for (Map.Entry<String, Long> candidate : candidates) {
+      long inputFee = FeeEstimator.fee(feeRate, inputVsize(candidate.getKey(), witnessCoins));
+      if (candidate.getValue() > inputFee) {
+        ids.add(candidate.getKey());
+        effectiveValues.add(candidate.getValue() - inputFee);
+        inputFees.add(inputFee);
+      }
+    }
+    // the segwit marker and flag are paid for up front, in case witness coins are selected
+    long overheadVsize =
+        TX_OVERHEAD_VSIZE + (witnessCoins.isEmpty() ? 0 : WITNESS_OVERHEAD_VSIZE) + OUTPUT_VSIZE;
+    long target = amount + FeeEstimator.fee(feeRate, overheadVsize);
+    // a change output costs its own size now and the size of an input when it is spent
+    long costOfChange = FeeEstimator.fee(feeRate, OUTPUT_VSIZE + INPUT_VSIZE);
+
+    BranchAndBound search = new BranchAndBound(effectiveValues, target, costOfChange);
+    search.run();
+    if (search.best == null) {
+      return Optional.empty();
+    }
+    List<String> selected = new ArrayList<>();
+    long total = 0;
+    for (int i = 0; i < search.best.length; i++) {
+      if (search.best[i]) {
+        selected.add(ids.get(i));
+        total += effectiveValues.get(i) + inputFees.get(i);
+      }
+    }
+    return Optional.of(new Selection(selected, total - amount));
+  }
+
+  private Optional<Selection> selectLargestFirst(
+      List<Map.Entry<String, Long>> candidates,
+      Set<String> witnessCoins,
+      long amount,
+      long feeRate) {
+    List<String> selected = new ArrayList<>();
+    int selectedWitnessCoins = 0;
+    long total = 0;
+    for (Map.Entry<String, Long> candidate : candidates) {
+      selected.add(candidate.getKey());
+      if (witnessCoins.contains(candidate.getKey())) {
+        selectedWitnessCoins++;
+      }
+      total += candidate.getValue();
+      int legacyCoins = selected.size() - selectedWitnessCoins;
+      long fee =
+          FeeEstimator.fee(
+              feeRate, FeeEstimator.estimateVsize(legacyCoins, selectedWitnessCoins, 2));
+      long change = total - amount - fee;
+      if (change >= DUST_THRESHOLD) {
+        return Optional.of(new Selection(selected, fee));
+      }
+      long feeWithoutChange =
+          FeeEstimator.fee(
+              feeRate, FeeEstimator.estimateVsize(legacyCoins, selectedWitnessCoins, 1));
+      if (total - amount >= feeWithoutChange) {
+        // the change would be dust, it goes to the fee
+        return Optional.of(new Selection(selected, total - amount));
+      }
+    }
+    return Optional.empty();
+  }
+
+  private static int inputVsize(String coin, Set<String> witnessCoins) {
+    return FeeEstimator.inputVsize(
+        witnessCoins.contains(coin) ? AddressType.P2WPKH : AddressType.P2PKH);
+  }
+
+  /**
+   * Depth-first search over including or excluding every coin (sorted by value, descending) for
+   * the selection with the least excess over the target, within the cost of a change output. The
+   * search keeps its branches on an explicit stack, as a wallet can have more coins than the call
+   * stack has room for frames.
+   */
+  private static class BranchAndBound {
+    private final long[] values;
+    // sum of the values from the index on
+    private final long[] remaining;
+    private final long target;
+    private final long maxExcess;
+    private final boolean[] included;
+    private boolean[] best;
+    private long bestExcess = Long.MAX_VALUE;
+    private int tries;
+
+    private BranchAndBound(List<Long> values, long target, long maxExcess) {
+      this.values = values.stream().mapToLong(Long::longValue).toArray();
+      this.remaining = new long[this.values.length + 1];
+      for (int i = this.values.length - 1; i >= 0; i--) {
+        remaining[i] = remaining[i + 1] + this.values[i];
+      }
+      this.target = target;
+      this.maxExcess = maxExcess;
+      this.included = new boolean[this.values.length];
+    }
+
+    private void run() {
+      // a branch is the index of the next coin and the sum of the coins included before it, and
+      // whether the branch excluding that coin is being searched; the index grows with the depth
+      int[] indexes = new int[values.length + 1];
+      long[] sums = new long[values.length + 1];
+      boolean[] excluding = new boolean[values.length + 1];
+      int depth = 1;
+      boolean entering = true;
+      while (depth > 0) {
+        int top = depth - 1;
+        int index = indexes[top];
+        long sum = sums[top];
+        if (entering) {
+          if (++tries > MAX_TRIES) {
+            return;
+          }
+          if (sum > target + maxExcess || sum + remaining[index] < target) {
+            depth--;
+            entering = false;
+          } else if (sum >= target) {
+            if (sum - target < bestExcess) {
+              bestExcess = sum - target;
+              best = included.clone();
+            }
+            depth--;
+            entering = false;
+          } else {
+            included[index] = true;
+            excluding[top] = false;
+            indexes[depth] = index + 1;
+            sums[depth] = sum + values[index];
+            depth++;
+          }
+        } else if (!excluding[top]) {
+          included[index] = false;
+          excluding[top] = true;
+          // excluding a coin of the same value as an excluded one gives the same sums
+          int next = index + 1;
+          while (next < values.length && values[next] == values[index]) {
+            next++;
+          }
+          indexes[depth] = next;
+          sums[depth] = sum;
+          depth++;
+          entering = true;
+        } else {
+          depth--;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.bitcoin;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.OptionalLong;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import transfer.transfer.UTXOData;
+
+/**
+ * Estimates transaction fees from the virtual size of the transaction and the fee rate of
+ * bitcoind's estimatesmartfee. The rate is refreshed in the background at the given interval, so
+ * that the bots never wait for bitcoind; until the first estimate arrives, and whenever bitcoind
+ * has no estimate or cannot be reached, the rate of a fallback table is used instead. Rates are in
+ * satoshi per 1000 virtual bytes, like in bitcoind.
+ */
+public class FeeEstimator {
+  private static final Logger logger = LoggerFactory.getLogger(FeeEstimator.class);
+
+  // pay-to-pubkey-hash transactions: version, input and output counts, lock time, then every
+  // input (outpoint, signature script, sequence) and output (value, script)
+  static final int TX_OVERHEAD_VSIZE = 10;
+  static final int INPUT_VSIZE = 148;
+  static final int OUTPUT_VSIZE = 34;
+  // pay-to-witness-pubkey-hash inputs have an empty signature script, their witness counts a
+  // quarter; transactions with witnesses add the segwit marker and flag
+  static final int WITNESS_INPUT_VSIZE = 68;
+  static final int WITNESS_OVERHEAD_VSIZE = 1;
+
+  // bitcoind's default minimum relay fee rate
+  private static final long MIN_FEE_RATE = 1_000;
+  // fee rate by confirmation target, the entry of the next larger target is used
+  private static final NavigableMap<Integer, Long> FALLBACK_FEE_RATES =
+      ImmutableSortedMap.of(2, 20_000L, 6, 10_000L, 12, 5_000L, 144, MIN_FEE_RATE);
+
+  private final BitcoinClient bitcoinClient;
+  private final int confTarget;
+  private volatile long feeRate;
+
+  public FeeEstimator(BitcoinClient bitcoinClient, int confTarget, Duration refreshInterval) {
+    this.bitcoinClient = bitcoinClient;
+    this.confTarget = confTarget;
+    this.feeRate = fallbackFeeRate();
+    ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("fee-estimator").build());
+    scheduler.scheduleWithFixedDelay(
+        this::refresh, 0, refreshInterval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  // With a fixed fee rate, e.g. for tests.
+  FeeEstimator(long feeRate) {
+    this.bitcoinClient = null;
+    this.confTarget = 0;
+    this.feeRate = feeRate;
+  }
+
+  public static int estimateVsize(int inputs, int outputs) {
+    return estimateVsize(inputs, 0, outputs);
+  }
+
+  /** The virtual size of a transaction with legacy and witness inputs. */
+  public static int estimateVsize(int legacyInputs, int witnessInputs, int outputs) {
+    return TX_OVERHEAD_VSIZE
+        + (witnessInputs > 0 ? WITNESS_OVERHEAD_VSIZE : 0)
+        + legacyInputs * INPUT_VSIZE
+        + witnessInputs * WITNESS_INPUT_VSIZE
+        + outputs * OUTPUT_VSIZE;
+  }
+
+  static int inputVsize(AddressType type) {
+    return type == AddressType.P2WPKH ? WITNESS_INPUT_VSIZE : INPUT_VSIZE;
+  }
+
+  /** The last estimated fee rate, without calling bitcoind. */
+  public long getFeeRate() {
+    return feeRate;
+  }
+
+  public long estimateFee(int inputs, int outputs) {
+    return fee(getFeeRate(), estimateVsize(inputs, outputs));
+  }
+
+  public long estimateFee(int legacyInputs, int witnessInputs, int outputs) {
+    return fee(getFeeRate(), estimateVsize(legacyInputs, witnessInputs, outputs));
+  }
+
+  /** The fee of a transaction spending the UTXOs, by the types of their scripts. */
+  public long estimateFee(Collection<UTXOData> inputs, int outputs) {
+    int witnessInputs = 0;
+    for (UTXOData input : inputs) {
+      if (AddressType.ofScript(input.sigScript.unpack) == AddressType.P2WPKH) {
+        witnessInputs++;
+      }
+    }
+    return estimateFee(inputs.size() - witnessInputs, witnessInputs, outputs);
+  }
+
+  static long fee(long feeRate, long vsize) {
+    // rounded up, so that the rate is not below the estimate
+    return (feeRate * vsize + 999) / 1000;
+  }
+
+  private void refresh() {
+    feeRate = Math.max(MIN_FEE_RATE, fetchFeeRate());
+  }
+
+  private long fetchFeeRate() {
+    try {
+      OptionalLong estimate = bitcoinClient.estimateSmartFee(confTarget);
+      if (estimate.isPresent()) {
+        logger.debug("Estimated fee rate: {} sat/kvB.", estimate.getAsLong());
+        return estimate.getAsLong();
+      }
+      logger.info("No fee estimate for {} blocks, using the fallback rate.", confTarget);
+    } catch (RuntimeException e) {
+      logger.warn("Fee estimation failed, using the fallback rate.", e);
+    }
+    return fallbackFeeRate();
+  }
+
+  private long fallbackFeeRate() {
+    Map.Entry<Integer, Long> fallback = FALLBACK_FEE_RATES.ceilingEntry(confTarget);
+    return fallback != null ? fallback.getValue() : MIN_FEE_RATE;
+  }
+}
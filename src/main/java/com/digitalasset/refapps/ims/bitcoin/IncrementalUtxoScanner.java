@@ -0,0 +1,285 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.bitcoin;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the unspent outputs of a set of addresses in sync with the Bitcoin network using a block
+ * cursor. After an initial full scan, only the wallet transactions of blocks after the cursor are
+ * inspected (listsinceblock). If the cursor block was orphaned by a reorg, bitcoind reports the
+ * transactions of the orphaned blocks as removed, which are rolled back before moving the cursor
+ * to the new tip. Outputs found before they had minConfirmation confirmations are passed on again
+ * once the block that confirms them is reached. Of each output, only its address, value and the
+ * fingerprint of its data are kept, and the balances of the addresses are kept up to date with
+ * them.
+ */
+public class IncrementalUtxoScanner {
+  private static final Logger logger = LoggerFactory.getLogger(IncrementalUtxoScanner.class);
+
+  // coinbase outputs can be spent at this depth (COINBASE_MATURITY + 1)
+  private static final long COINBASE_MATURITY_DEPTH = 101;
+
+  private final BitcoinClient bitcoinClient;
+  private final BiConsumer<Collection<String>, Consumer<TxRef>> fullScanner;
+  private final int minConfirmation;
+  private final int fullScanInterval;
+
+  private final Set<String> addresses = new HashSet<>();
+  private final Map<UtxoId, KnownOutput> utxos = new HashMap<>();
+  private final Map<String, AddressBalance> balancesByAddress = new HashMap<>();
+  private final Map<UtxoId, Long> immatureCoinbaseHeights = new HashMap<>();
+  // the heights at which the unconfirmed outputs get their confirmed time
+  private final Map<UtxoId, Long> confirmationHeights = new HashMap<>();
+  private String cursorHash;
+  private int scansSinceFullScan;
+
+  /**
+   * @param fullScanner passes the unspent outputs of the given addresses to the consumer
+   * @param fullScanInterval a full scan is done after this many incremental ones to recover from
+   *     drift, e.g. mempool transactions that never got mined
+   */
+  public IncrementalUtxoScanner(
+      BitcoinClient bitcoinClient,
+      BiConsumer<Collection<String>, Consumer<TxRef>> fullScanner,
+      int minConfirmation,
+      int fullScanInterval) {
+    this.bitcoinClient = bitcoinClient;
+    this.fullScanner = fullScanner;
+    this.minConfirmation = minConfirmation;
+    this.fullScanInterval = fullScanInterval;
+  }
+
+  /** Synchronises the unspent outputs, passing those created since the last sync to onCreated. */
+  public synchronized UtxoDelta sync(
+      Collection<String> requestedAddresses, Consumer<TxRef> onCreated) {
+    Set<String> requested = new HashSet<>(requestedAddresses);
+    if (cursorHash == null || scansSinceFullScan >= fullScanInterval) {
+      return fullScan(requested, onCreated);
+    }
+    try {
+      return incrementalScan(requested, onCreated);
+    } catch (RuntimeException e) {
+      logger.warn("Incremental UTXO scan failed, falling back to a full scan.", e);
+      return fullScan(requested, onCreated);
+    }
+  }
+
+  private UtxoDelta fullScan(Set<String> requested, Consumer<TxRef> onCreated) {
+    addresses.clear();
+    utxos.clear();
+    balancesByAddress.clear();
+    immatureCoinbaseHeights.clear();
+    confirmationHeights.clear();
+    cursorHash = null;
+
+    // Coinbase outputs are not listed before they mature. Starting the cursor below the tip lets
+    // the next incremental scan see the immature ones of the last blocks.
+    long tipHeight = bitcoinClient.getBlockCount();
+    String startHash = bitcoinClient.getBlockHash(Math.max(0, tipHeight - COINBASE_MATURITY_DEPTH));
+
+    fullScanner.accept(
+        requested,
+        txRef -> {
+          add(txRef);
+          onCreated.accept(txRef);
+        });
+    addresses.addAll(requested);
+    cursorHash = startHash;
+    scansSinceFullScan = 0;
+    logger.info("Full UTXO scan found {} outputs of {} addresses.", utxos.size(), requested.size());
+    return UtxoDelta.fullScan(getBalancesByAddress(requested));
+  }
+
+  // Nothing is passed to onCreated before all calls succeeded, as a failure leads to a full scan.
+  private UtxoDelta incrementalScan(Set<String> requested, Consumer<TxRef> onCreated) {
+    Set<String> newAddresses = new HashSet<>(requested);
+    newAddresses.removeAll(addresses);
+    Set<String> droppedAddresses = new HashSet<>(addresses);
+    droppedAddresses.removeAll(requested);
+    if (!droppedAddresses.isEmpty()) {
+      Iterator<Map.Entry<UtxoId, KnownOutput>> known = utxos.entrySet().iterator();
+      while (known.hasNext()) {
+        Map.Entry<UtxoId, KnownOutput> entry = known.next();
+        if (droppedAddresses.contains(entry.getValue().address)) {
+          confirmationHeights.remove(entry.getKey());
+          known.remove();
+        }
+      }
+      balancesByAddress.keySet().removeAll(droppedAddresses);
+    }
+    addresses.removeAll(droppedAddresses);
+
+    JSONObject sinceBlock = bitcoinClient.listSinceBlock(cursorHash);
+    String lastBlock = (String) sinceBlock.get("lastblock");
+    long lastBlockHeight = bitcoinClient.getBlockHeight(lastBlock);
+
+    Map<UtxoId, KnownOutput> removed = new HashMap<>();
+    Set<UtxoId> candidates = new LinkedHashSet<>();
+
+    // roll back the transactions of orphaned blocks
+    JSONArray orphaned = (JSONArray) sinceBlock.get("removed");
+    if (orphaned != null && !orphaned.isEmpty()) {
+      logger.warn("Reorg detected, rolling back {} wallet transaction entries.", orphaned.size());
+      Set<String> orphanedTxids = new LinkedHashSet<>();
+      for (Object entry : orphaned) {
+        JSONObject jsonEntry = (JSONObject) entry;
+        orphanedTxids.add((String) jsonEntry.get("txid"));
+        if (isReceive(jsonEntry)) {
+          UtxoId utxoId = toUtxoId(jsonEntry);
+          immatureCoinbaseHeights.remove(utxoId);
+          KnownOutput output = remove(utxoId);
+          if (output != null) {
+            removed.put(utxoId, output);
+          }
+        }
+      }
+      // outputs spent by orphaned transactions might be unspent again
+      candidates.addAll(bitcoinClient.getSpentOutputs(orphanedTxids));
+    }
+
+    Set<String> txids = new LinkedHashSet<>();
+    for (Object entry : (JSONArray) sinceBlock.get("transactions")) {
+      JSONObject jsonEntry = (JSONObject) entry;
+      txids.add((String) jsonEntry.get("txid"));
+      if (!isReceive(jsonEntry) || !addresses.contains((String) jsonEntry.get("address"))) {
+        continue;
+      }
+      UtxoId utxoId = toUtxoId(jsonEntry);
+      if ("immature".equals(jsonEntry.get("category"))) {
+        long confirmations = (Long) jsonEntry.get("confirmations");
+        immatureCoinbaseHeights.put(utxoId, lastBlockHeight - confirmations + 1);
+      } else {
+        candidates.add(utxoId);
+      }
+    }
+
+    for (UtxoId utxoId : bitcoinClient.getSpentOutputs(txids)) {
+      immatureCoinbaseHeights.remove(utxoId);
+      candidates.remove(utxoId);
+      KnownOutput output = remove(utxoId);
+      if (output != null) {
+        removed.put(utxoId, output);
+      }
+    }
+
+    Iterator<Map.Entry<UtxoId, Long>> immature = immatureCoinbaseHeights.entrySet().iterator();
+    while (immature.hasNext()) {
+      Map.Entry<UtxoId, Long> entry = immature.next();
+      if (lastBlockHeight - entry.getValue() + 1 >= COINBASE_MATURITY_DEPTH) {
+        candidates.add(entry.getKey());
+        immature.remove();
+      }
+    }
+
+    // outputs that got confirmed are replaced, unless their data turns out to be unchanged
+    List<UtxoId> confirmed = new ArrayList<>();
+    confirmationHeights.forEach(
+        (utxoId, confirmationHeight) -> {
+          if (confirmationHeight <= lastBlockHeight) {
+            confirmed.add(utxoId);
+          }
+        });
+    for (UtxoId utxoId : confirmed) {
+      removed.put(utxoId, remove(utxoId));
+      candidates.add(utxoId);
+    }
+
+    candidates.removeAll(utxos.keySet());
+    List<TxRef> created =
+        new ArrayList<>(bitcoinClient.getUnspentOutputs(minConfirmation, candidates, addresses));
+    if (!newAddresses.isEmpty()) {
+      fullScanner.accept(newAddresses, created::add);
+      addresses.addAll(newAddresses);
+    }
+
+    Set<String> affectedAddresses = new HashSet<>(newAddresses);
+    int createdCount = 0;
+    for (TxRef txRef : created) {
+      KnownOutput output = add(txRef);
+      KnownOutput old = removed.get(txRef.getId());
+      if (old != null && old.fingerprint == output.fingerprint) {
+        // rolled back or passed on for confirmation, and re-added unchanged
+        removed.remove(txRef.getId());
+      } else {
+        onCreated.accept(txRef);
+        createdCount++;
+        affectedAddresses.add(txRef.getAddress());
+      }
+    }
+    removed.values().forEach(old -> affectedAddresses.add(old.address));
+    affectedAddresses.retainAll(addresses);
+
+    cursorHash = lastBlock;
+    scansSinceFullScan++;
+    logger.info(
+        "Incremental UTXO scan up to block {}: {} created, {} spent.",
+        lastBlockHeight,
+        createdCount,
+        removed.size());
+    return UtxoDelta.incremental(getBalancesByAddress(affectedAddresses), removed.keySet());
+  }
+
+  private static boolean isReceive(JSONObject entry) {
+    Object category = entry.get("category");
+    return "receive".equals(category) || "generate".equals(category) || "immature".equals(category);
+  }
+
+  private static UtxoId toUtxoId(JSONObject entry) {
+    return new UtxoId((String) entry.get("txid"), (Long) entry.get("vout"));
+  }
+
+  private KnownOutput add(TxRef txRef) {
+    KnownOutput output = new KnownOutput(txRef.getAddress(), txRef.getValue(), txRef.fingerprint());
+    KnownOutput old = utxos.put(txRef.getId(), output);
+    if (old != null) {
+      balancesByAddress.get(old.address).remove(old.value);
+    }
+    balancesByAddress
+        .computeIfAbsent(output.address, address -> new AddressBalance())
+        .add(output.value);
+    if (!txRef.getConfirmed().isPresent()) {
+      confirmationHeights.put(txRef.getId(), txRef.getBlockHeight() + minConfirmation);
+    }
+    return output;
+  }
+
+  private KnownOutput remove(UtxoId utxoId) {
+    KnownOutput output = utxos.remove(utxoId);
+    confirmationHeights.remove(utxoId);
+    if (output != null) {
+      balancesByAddress.get(output.address).remove(output.value);
+    }
+    return output;
+  }
+
+  private Map<String, AddressBalance> getBalancesByAddress(Set<String> selectedAddresses) {
+    Map<String, AddressBalance> selected = new HashMap<>();
+    for (String address : selectedAddresses) {
+      AddressBalance balance = balancesByAddress.get(address);
+      selected.put(address, balance != null ? new AddressBalance(balance) : new AddressBalance());
+    }
+    return selected;
+  }
+
+  // The part of an unspent output that is kept between scans.
+  private static final class KnownOutput {
+    private final String address;
+    private final long value;
+    private final long fingerprint;
+
+    private KnownOutput(String address, long value, long fingerprint) {
+      this.address = address;
+      this.value = value;
+      this.fingerprint = fingerprint;
+    }
+  }
+}
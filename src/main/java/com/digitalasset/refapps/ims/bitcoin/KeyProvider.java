@@ -0,0 +1,14 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.bitcoin;
+
+import fr.acinq.bitcoin.Crypto;
+import java.util.Optional;
+
+/** Private keys of owned addresses, as used for signing. */
+public interface KeyProvider {
+  /** The private key of the address, or empty if it is not owned. */
+  Optional<Crypto.PrivateKey> getPrivateKey(String address);
+}
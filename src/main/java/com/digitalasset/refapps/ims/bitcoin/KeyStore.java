@@ -0,0 +1,303 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.bitcoin;
+
+import bitcoin.types.BitcoinAddress;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import fr.acinq.bitcoin.Base58;
+import fr.acinq.bitcoin.BinaryData;
+import fr.acinq.bitcoin.Crypto;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Private keys of a key file (one Base58 encoded key per line), looked up through an address index
+ * instead of being decoded at startup. The index is a sidecar file, built once in parallel and
+ * rebuilt when the key file changes. It holds the hash160 of every address, sorted, with the
+ * position of its key in the key file. Both files are memory-mapped; a key is decoded on its first
+ * use and cached up to the given number of keys.
+ */
+public class KeyStore implements KeyProvider {
+  private static final Logger logger = LoggerFactory.getLogger(KeyStore.class);
+
+  private static final byte SECRET_KEY_PREFIX = Base58.Prefix$.MODULE$.SecretKeyTestnet();
+
+  private static final int MAGIC = 0x494d534b;
+  private static final int VERSION = 1;
+  // magic, version, key file size, key file modification time, number of entries
+  private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+  private static final int HASH_SIZE = 20;
+  // hash160, offset and length of the key in the key file
+  private static final int ENTRY_SIZE = HASH_SIZE + 8 + 4;
+
+  private final ByteBuffer keys;
+  private final ByteBuffer index;
+  private final int size;
+  private final Cache<String, Crypto.PrivateKey> privateKeys;
+
+  private KeyStore(ByteBuffer keys, ByteBuffer index, int maxCachedKeys) {
+    this.keys = keys;
+    this.index = index;
+    this.size = index.getInt(HEADER_SIZE - 4);
+    this.privateKeys = CacheBuilder.newBuilder().maximumSize(maxCachedKeys).build();
+  }
+
+  /** Opens the key file with the index next to it, as keyFile.idx. */
+  public static KeyStore open(String keyFile, int maxCachedKeys) throws IOException {
+    return open(Paths.get(keyFile), Paths.get(keyFile + ".idx"), maxCachedKeys);
+  }
+
+  /** Opens the key file with the given index, which is built first if it is missing or stale. */
+  public static KeyStore open(Path keyFile, Path indexFile, int maxCachedKeys) throws IOException {
+    ByteBuffer keys = map(keyFile);
+    long keyFileSize = Files.size(keyFile);
+    long keyFileModified = Files.getLastModifiedTime(keyFile).toMillis();
+    if (Files.exists(indexFile)) {
+      ByteBuffer index = map(indexFile);
+      if (isValid(index, keyFileSize, keyFileModified)) {
+        return new KeyStore(keys, index, maxCachedKeys);
+      }
+      logger.info("Index {} is stale, rebuilding it.", indexFile);
+    }
+    long start = System.nanoTime();
+    writeIndex(indexFile, buildIndex(keys, keyFileSize, keyFileModified));
+    KeyStore keyStore = new KeyStore(keys, map(indexFile), maxCachedKeys);
+    logger.info(
+        "Indexed {} keys of {} in {} ms.",
+        keyStore.size(),
+        keyFile,
+        (System.nanoTime() - start) / 1_000_000);
+    return keyStore;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /** The addresses of all keys, in the order of the index. */
+  public List<BitcoinAddress> getAddresses() {
+    return IntStream.range(0, size)
+        .parallel()
+        .mapToObj(i -> new BitcoinAddress(encodeAddress(readHash(i))))
+        .collect(Collectors.toList());
+  }
+
+  public boolean contains(String address) {
+    return decodeAddress(address).map(hash -> find(hash) >= 0).orElse(false);
+  }
+
+  /** The private key of the address, decoded on first use, or empty if it is not in the store. */
+  @Override
+  public Optional<Crypto.PrivateKey> getPrivateKey(String address) {
+    Crypto.PrivateKey privateKey = privateKeys.getIfPresent(address);
+    if (privateKey != null) {
+      return Optional.of(privateKey);
+    }
+    Optional<byte[]> hash = decodeAddress(address);
+    int entry = hash.map(this::find).orElse(-1);
+    if (entry < 0) {
+      return Optional.empty();
+    }
+    privateKey = decodeKey(readKey(entry));
+    if (!Arrays.equals(hash.get(), hash160(privateKey))) {
+      throw new IllegalStateException("Index does not match the key of address " + address);
+    }
+    privateKeys.put(address, privateKey);
+    return Optional.of(privateKey);
+  }
+
+  /** Decodes all keys in parallel, for callers that need every key at once. */
+  public Map<BitcoinAddress, Crypto.PrivateKey> loadAll() {
+    Map<BitcoinAddress, Crypto.PrivateKey> keysByAddress = new ConcurrentHashMap<>(size);
+    IntStream.range(0, size)
+        .parallel()
+        .forEach(
+            i ->
+                keysByAddress.put(
+                    new BitcoinAddress(encodeAddress(readHash(i))), decodeKey(readKey(i))));
+    return keysByAddress;
+  }
+
+  // Binary search for the entry of the hash, -1 if there is none.
+  private int find(byte[] hash) {
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compareHash(mid, hash);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  private int compareHash(int entry, byte[] hash) {
+    int offset = HEADER_SIZE + entry * ENTRY_SIZE;
+    for (int i = 0; i < HASH_SIZE; i++) {
+      int cmp = Integer.compare(index.get(offset + i) & 0xff, hash[i] & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return 0;
+  }
+
+  private byte[] readHash(int entry) {
+    byte[] hash = new byte[HASH_SIZE];
+    int offset = HEADER_SIZE + entry * ENTRY_SIZE;
+    for (int i = 0; i < HASH_SIZE; i++) {
+      hash[i] = index.get(offset + i);
+    }
+    return hash;
+  }
+
+  private String readKey(int entry) {
+    int offset = HEADER_SIZE + entry * ENTRY_SIZE + HASH_SIZE;
+    return readLine(keys, (int) index.getLong(offset), index.getInt(offset + 8));
+  }
+
+  private static boolean isValid(ByteBuffer index, long keyFileSize, long keyFileModified) {
+    return index.capacity() >= HEADER_SIZE
+        && index.getInt(0) == MAGIC
+        && index.getInt(4) == VERSION
+        && index.getLong(8) == keyFileSize
+        && index.getLong(16) == keyFileModified
+        && index.capacity() == HEADER_SIZE + (long) index.getInt(24) * ENTRY_SIZE;
+  }
+
+  private static ByteBuffer buildIndex(ByteBuffer keys, long keyFileSize, long keyFileModified) {
+    // positions of the non-empty lines
+    List<int[]> lines = new ArrayList<>();
+    int start = 0;
+    for (int i = 0; i <= keys.capacity(); i++) {
+      if (i == keys.capacity() || keys.get(i) == '\n') {
+        int end = i;
+        while (end > start && Character.isWhitespace(keys.get(end - 1))) {
+          end--;
+        }
+        if (end > start) {
+          lines.add(new int[] {start, end - start});
+        }
+        start = i + 1;
+      }
+    }
+
+    byte[][] hashes =
+        lines.parallelStream()
+            .map(line -> hash160(decodeKey(readLine(keys, line[0], line[1]))))
+            .toArray(byte[][]::new);
+    Integer[] order = IntStream.range(0, hashes.length).boxed().toArray(Integer[]::new);
+    Arrays.parallelSort(order, (a, b) -> compare(hashes[a], hashes[b]));
+
+    ByteBuffer index = ByteBuffer.allocate(HEADER_SIZE + hashes.length * ENTRY_SIZE);
+    index.putInt(MAGIC).putInt(VERSION).putLong(keyFileSize).putLong(keyFileModified);
+    index.putInt(hashes.length);
+    for (int i : order) {
+      index.put(hashes[i]).putLong(lines.get(i)[0]).putInt(lines.get(i)[1]);
+    }
+    index.flip();
+    return index;
+  }
+
+  private static void writeIndex(Path indexFile, ByteBuffer index) throws IOException {
+    Path tmpFile = Paths.get(indexFile + ".tmp");
+    try (FileChannel channel =
+        FileChannel.open(
+            tmpFile,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (index.hasRemaining()) {
+        channel.write(index);
+      }
+    }
+    Files.move(tmpFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static ByteBuffer map(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("File too large: " + file);
+      }
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+  }
+
+  private static String readLine(ByteBuffer keys, int offset, int length) {
+    byte[] line = new byte[length];
+    for (int i = 0; i < length; i++) {
+      line[i] = keys.get(offset + i);
+    }
+    return new String(line, StandardCharsets.US_ASCII);
+  }
+
+  private static Crypto.PrivateKey decodeKey(String key) {
+    return Crypto.PrivateKey$.MODULE$.fromBase58(key, SECRET_KEY_PREFIX);
+  }
+
+  private static byte[] hash160(Crypto.PrivateKey privateKey) {
+    return fromHex(privateKey.publicKey().hash160().toString());
+  }
+
+  // pay-to-pubkey-hash addresses are the same on all networks of the testnet keys
+  private static String encodeAddress(byte[] hash) {
+    return AddressType.P2PKH.encode(Network.REGTEST, BinaryData.apply(toHex(hash)));
+  }
+
+  // The hash160 of a pay-to-pubkey-hash or pay-to-witness-pubkey-hash address of the network,
+  // empty for other addresses.
+  private static Optional<byte[]> decodeAddress(String address) {
+    return AddressType.decode(address).map(hash -> fromHex(hash.toString()));
+  }
+
+  private static int compare(byte[] a, byte[] b) {
+    for (int i = 0; i < HASH_SIZE; i++) {
+      int cmp = Integer.compare(a[i] & 0xff, b[i] & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return 0;
+  }
+
+  static byte[] fromHex(String hex) {
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    }
+    return bytes;
+  }
+
+  static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+}
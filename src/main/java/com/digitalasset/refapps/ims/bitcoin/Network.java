@@ -0,0 +1,24 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.bitcoin;
+
+/**
+ * The Bitcoin networks of the owned addresses. Both use the Base58 prefixes of testnet, they only
+ * differ in the human-readable part of their Bech32 addresses.
+ */
+public enum Network {
+  TESTNET("tb"),
+  REGTEST("bcrt");
+
+  private final String bech32Prefix;
+
+  Network(String bech32Prefix) {
+    this.bech32Prefix = bech32Prefix;
+  }
+
+  public String getBech32Prefix() {
+    return bech32Prefix;
+  }
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.bitcoin;
+
+import bitcoin.types.BitcoinAddress;
+import bitcoin.types.RawTx;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import fr.acinq.bitcoin.*;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import scala.Predef$;
+import transfer.transfer.UTXOData;
+
+/**
+ * Creates signed transactions like BTCUtility.createTransactionData, with fewer allocations per
+ * transaction: scripts are decoded once per address and cached, transaction hashes are reversed
+ * as hex strings, the DAML wrappers are unpacked through their fields, and the Scala sequences
+ * are array wrappers instead of converted Java lists. Inputs and outputs may be pay-to-pubkey-hash
+ * or pay-to-witness-pubkey-hash; witness inputs are signed as in BIP143. Thread-safe.
+ */
+public class TransactionBuilder {
+  private static final long TX_SEQUENCE = 0xFFFFFFFFL;
+  private static final int MAX_CACHED_SCRIPTS = 10_000;
+  private static final int SIGHASH_ALL = 1;
+  // signature versions of legacy and version 0 witness inputs, as in bitcoind
+  private static final int SIGVERSION_BASE = 0;
+  private static final int SIGVERSION_WITNESS_V0 = 1;
+  private static final BinaryData EMPTY_SCRIPT = BinaryData.apply("");
+
+  private final KeyProvider keyProvider;
+  // output scripts by address, and decoded scripts by hex
+  private final ConcurrentMap<String, BinaryData> addressScripts;
+  private final ConcurrentMap<String, BinaryData> decodedScripts;
+
+  public TransactionBuilder(KeyProvider keyProvider) {
+    this.keyProvider = keyProvider;
+    Cache<String, BinaryData> addressScriptCache =
+        CacheBuilder.newBuilder().maximumSize(MAX_CACHED_SCRIPTS).build();
+    Cache<String, BinaryData> decodedScriptCache =
+        CacheBuilder.newBuilder().maximumSize(MAX_CACHED_SCRIPTS).build();
+    this.addressScripts = addressScriptCache.asMap();
+    this.decodedScripts = decodedScriptCache.asMap();
+  }
+
+  public RawTx createTransactionData(
+      Collection<UTXOData> txInputs,
+      BitcoinAddress destinationAddress,
+      Satoshi amount,
+      Satoshi fee,
+      BitcoinAddress changeAddress) {
+    return createTransactionData(
+        txInputs, Collections.singletonMap(destinationAddress, amount), fee, changeAddress);
+  }
+
+  /** Creates a transaction paying every address its amount, with a single change output. */
+  public RawTx createTransactionData(
+      Collection<UTXOData> txInputs,
+      Map<BitcoinAddress, Satoshi> payments,
+      Satoshi fee,
+      BitcoinAddress changeAddress) {
+    TxIn[] txIns = new TxIn[txInputs.size()];
+    SignData[] signData = new SignData[txInputs.size()];
+    long[] inputValues = new long[txInputs.size()];
+    boolean[] witnessInputs = new boolean[txInputs.size()];
+    boolean hasWitnessInputs = false;
+    long sendingSatoshi = 0;
+    int i = 0;
+    for (UTXOData utxoData : txInputs) {
+      sendingSatoshi += utxoData.value.unpack;
+      OutPoint outPoint =
+          new OutPoint(BinaryData.apply(reverseHex(utxoData.txHash.unpack)), utxoData.outputIdx);
+      BinaryData prevOutputScript = decodeScript(utxoData.sigScript.unpack);
+      inputValues[i] = utxoData.value.unpack;
+      witnessInputs[i] = AddressType.ofScript(utxoData.sigScript.unpack) == AddressType.P2WPKH;
+      hasWitnessInputs |= witnessInputs[i];
+      // the signature script of a witness input stays empty
+      txIns[i] =
+          new TxIn(
+              outPoint,
+              witnessInputs[i] ? EMPTY_SCRIPT : prevOutputScript,
+              TX_SEQUENCE,
+              ScriptWitness.empty());
+      signData[i] = new SignData(prevOutputScript, getPrivateKey(utxoData.address.unpack));
+      i++;
+    }
+
+    long change = sendingSatoshi - fee.amount();
+    for (Satoshi amount : payments.values()) {
+      change -= amount.amount();
+    }
+    TxOut[] txOuts = new TxOut[change > 0 ? payments.size() + 1 : payments.size()];
+    int j = 0;
+    for (Map.Entry<BitcoinAddress, Satoshi> payment : payments.entrySet()) {
+      txOuts[j++] = new TxOut(payment.getValue(), toScript(payment.getKey()));
+    }
+    if (change > 0) {
+      txOuts[j] = new TxOut(new Satoshi(change), toScript(changeAddress));
+    }
+
+    Transaction unsignedTransaction =
+        new Transaction(
+            1L, Predef$.MODULE$.wrapRefArray(txIns), Predef$.MODULE$.wrapRefArray(txOuts), 0L);
+    Transaction signedTransaction =
+        hasWitnessInputs
+            ? signEachInput(unsignedTransaction, signData, inputValues, witnessInputs)
+            : Transaction.sign(unsignedTransaction, Predef$.MODULE$.wrapRefArray(signData));
+    return new RawTx(signedTransaction.bin().toString());
+  }
+
+  // Signs the inputs of a transaction with witness inputs one by one. Neither signature hash
+  // covers the signature scripts or witnesses of the other inputs, so all are signed over the
+  // unsigned transaction.
+  private static Transaction signEachInput(
+      Transaction unsignedTransaction,
+      SignData[] signData,
+      long[] inputValues,
+      boolean[] witnessInputs) {
+    Transaction signedTransaction = unsignedTransaction;
+    for (int i = 0; i < signData.length; i++) {
+      Crypto.PrivateKey privateKey = signData[i].privateKey();
+      Crypto.PublicKey publicKey = privateKey.publicKey();
+      if (witnessInputs[i]) {
+        // the script code of a pay-to-witness-pubkey-hash input is the pay-to-pubkey-hash script
+        BinaryData signature =
+            Transaction.signInput(
+                unsignedTransaction,
+                i,
+                Script.write(Script.pay2pkh(publicKey)),
+                SIGHASH_ALL,
+                new Satoshi(inputValues[i]),
+                SIGVERSION_WITNESS_V0,
+                privateKey);
+        signedTransaction =
+            signedTransaction.updateWitness(i, Script.witnessPay2wpkh(publicKey, signature));
+      } else {
+        BinaryData signature =
+            Transaction.signInput(
+                unsignedTransaction,
+                i,
+                signData[i].publicKeyScript(),
+                SIGHASH_ALL,
+                new Satoshi(inputValues[i]),
+                SIGVERSION_BASE,
+                privateKey);
+        ScriptElt[] signatureScript = {
+          OP_PUSHDATA.apply(signature), OP_PUSHDATA.apply(publicKey.toBin())
+        };
+        signedTransaction =
+            signedTransaction.updateSigScript(
+                i, Script.write(Predef$.MODULE$.wrapRefArray(signatureScript)));
+      }
+    }
+    return signedTransaction;
+  }
+
+  private Crypto.PrivateKey getPrivateKey(String address) {
+    return keyProvider
+        .getPrivateKey(address)
+        .orElseThrow(() -> new IllegalArgumentException("No private key for address " + address));
+  }
+
+  private BinaryData toScript(BitcoinAddress address) {
+    return addressScripts.computeIfAbsent(address.unpack, AddressType::toScript);
+  }
+
+  private BinaryData decodeScript(String hex) {
+    return decodedScripts.computeIfAbsent(hex, BinaryData::apply);
+  }
+
+  // Reverses the byte order of a hex string, e.g. of a transaction hash.
+  private static String reverseHex(String hex) {
+    char[] reversed = new char[hex.length()];
+    for (int i = 0; i < hex.length(); i += 2) {
+      reversed[hex.length() - i - 2] = hex.charAt(i);
+      reversed[hex.length() - i - 1] = hex.charAt(i + 1);
+    }
+    return new String(reversed);
+  }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.bitcoin;
+
+import bitcoin.types.BitcoinAddress;
+import bitcoin.types.RawTx;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import fr.acinq.bitcoin.Satoshi;
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import transfer.transfer.UTXOData;
+
+/**
+ * Creates and signs transactions on a dedicated pool, as signing is CPU-bound. Exposes the number
+ * of queued and running signings (signing.queue-depth), the time spent signing (signing.latency)
+ * and failed signings (signing.errors).
+ */
+public class TransactionSigningEngine implements Closeable {
+  private final TransactionBuilder transactionBuilder;
+  private final ExecutorService executor;
+  private final AtomicInteger queueDepth = new AtomicInteger();
+  private final Timer latency;
+  private final Counter errors;
+
+  public TransactionSigningEngine(
+      KeyProvider keyProvider, int parallelism, MetricRegistry metricRegistry) {
+    this.transactionBuilder = new TransactionBuilder(keyProvider);
+    this.executor =
+        Executors.newFixedThreadPool(
+            parallelism,
+            new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("transaction-signer-%d")
+                .build());
+    metricRegistry.gauge("signing.queue-depth", () -> (Gauge<Integer>) queueDepth::get);
+    this.latency = metricRegistry.timer("signing.latency");
+    this.errors = metricRegistry.counter("signing.errors");
+  }
+
+  public CompletableFuture<RawTx> sign(
+      Collection<UTXOData> txInputs,
+      BitcoinAddress destinationAddress,
+      Satoshi amount,
+      Satoshi fee,
+      BitcoinAddress changeAddress) {
+    return sign(txInputs, Collections.singletonMap(destinationAddress, amount), fee, changeAddress);
+  }
+
+  /** Signs a transaction paying several addresses, see TransactionBuilder. */
+  public CompletableFuture<RawTx> sign(
+      Collection<UTXOData> txInputs,
+      Map<BitcoinAddress, Satoshi> payments,
+      Satoshi fee,
+      BitcoinAddress changeAddress) {
+    queueDepth.incrementAndGet();
+    return CompletableFuture.supplyAsync(
+        () -> {
+          try (Timer.Context ignored = latency.time()) {
+            return transactionBuilder.createTransactionData(txInputs, payments, fee, changeAddress);
+          } catch (RuntimeException e) {
+            errors.inc();
+            throw e;
+          } finally {
+            queueDepth.decrementAndGet();
+          }
+        },
+        executor);
+  }
+
+  @Override
+  public void close() {
+    executor.shutdown();
+  }
+}
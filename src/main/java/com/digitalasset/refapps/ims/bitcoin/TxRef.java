@@ -38,6 +38,10 @@ public class TxRef {
     this.scriptPubKey = scriptPubKey;
   }
 
+  public String getAddress() {
+    return address;
+  }
+
   public String getTxHash() {
     return txHash;
   }
@@ -50,6 +54,68 @@ public class TxRef {
     return value;
   }
 
+  public long getBlockHeight() {
+    return blockHeight;
+  }
+
+  /** The time of the block at which the output reached the required confirmations, if it did. */
+  public Optional<Instant> getConfirmed() {
+    return confirmed;
+  }
+
+  /** Whether the output is spent with a signature script or a witness. */
+  public AddressType getAddressType() {
+    return AddressType.ofScript(scriptPubKey);
+  }
+
+  public UtxoId getId() {
+    return new UtxoId(txHash, outputIdx);
+  }
+
+  /** 64-bit fingerprint of the data of the output, equal to the fingerprint of toUtxoData(). */
+  public long fingerprint() {
+    return fingerprint(address, blockHeight, value, confirmed, scriptPubKey);
+  }
+
+  public static long fingerprint(UTXOData utxoData) {
+    return fingerprint(
+        utxoData.address.unpack,
+        utxoData.blockHeight,
+        utxoData.value.unpack,
+        utxoData.confirmed,
+        utxoData.sigScript.unpack);
+  }
+
+  // FNV-1a, finished with the mixing function of SplitMix64
+  private static long fingerprint(
+      String address,
+      long blockHeight,
+      long value,
+      Optional<Instant> confirmed,
+      String scriptPubKey) {
+    long hash = 0xcbf29ce484222325L;
+    hash = mix(hash, address);
+    hash = mix(hash, blockHeight);
+    hash = mix(hash, value);
+    hash = mix(hash, confirmed.map(Instant::getEpochSecond).orElse(-1L));
+    hash = mix(hash, confirmed.map(Instant::getNano).orElse(-1));
+    hash = mix(hash, scriptPubKey);
+    hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+    hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+    return hash ^ (hash >>> 31);
+  }
+
+  private static long mix(long hash, String s) {
+    for (int i = 0; i < s.length(); i++) {
+      hash = (hash ^ s.charAt(i)) * 0x100000001b3L;
+    }
+    return mix(hash, s.length());
+  }
+
+  private static long mix(long hash, long value) {
+    return (hash ^ value) * 0x100000001b3L;
+  }
+
   public UTXOData toUtxoData() {
     return new UTXOData(
         new BitcoinAddress(address),
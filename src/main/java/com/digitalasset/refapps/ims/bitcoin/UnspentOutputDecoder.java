@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.bitcoin;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
+
+/**
+ * Decodes a listunspent JSON-RPC response while it is being read. Every output of the result array
+ * is passed to the consumer as soon as it is complete, so that the decoder holds one output at a
+ * time instead of the whole response tree. Only the fields of an output that are used are kept;
+ * what the consumer keeps of them is up to it.
+ */
+class UnspentOutputDecoder implements ContentHandler {
+  // response object > result array > output object
+  private static final int OUTPUT_DEPTH = 3;
+  private static final int ERROR_DEPTH = 2;
+  private static final Set<String> OUTPUT_KEYS =
+      new HashSet<>(Arrays.asList("txid", "vout", "address", "amount", "scriptPubKey"));
+
+  private final Consumer<JSONObject> consumer;
+  private int depth;
+  private String responseKey;
+  private String key;
+  private JSONObject output;
+  private JSONObject error;
+  private long count;
+
+  UnspentOutputDecoder(Consumer<JSONObject> consumer) {
+    this.consumer = consumer;
+  }
+
+  /** The error of the response, if the call failed. */
+  Optional<JSONObject> getError() {
+    return Optional.ofNullable(error);
+  }
+
+  /** Number of outputs passed to the consumer. */
+  long getCount() {
+    return count;
+  }
+
+  @Override
+  public void startJSON() {}
+
+  @Override
+  public void endJSON() {}
+
+  @Override
+  public boolean startObject() {
+    depth++;
+    if (depth == OUTPUT_DEPTH && "result".equals(responseKey)) {
+      output = new JSONObject();
+    } else if (depth == ERROR_DEPTH && "error".equals(responseKey)) {
+      error = new JSONObject();
+    }
+    return true;
+  }
+
+  @Override
+  public boolean endObject() {
+    if (depth == OUTPUT_DEPTH && output != null) {
+      consumer.accept(output);
+      output = null;
+      count++;
+    }
+    depth--;
+    return true;
+  }
+
+  @Override
+  public boolean startObjectEntry(String key) {
+    if (depth == 1) {
+      responseKey = key;
+    } else {
+      this.key = key;
+    }
+    return true;
+  }
+
+  @Override
+  public boolean endObjectEntry() {
+    return true;
+  }
+
+  @Override
+  public boolean startArray() {
+    depth++;
+    return true;
+  }
+
+  @Override
+  public boolean endArray() {
+    depth--;
+    return true;
+  }
+
+  @Override
+  public boolean primitive(Object value) {
+    // nested values of an output (none in listunspent of bitcoind 0.18) are skipped
+    if (depth == OUTPUT_DEPTH && output != null) {
+      if (OUTPUT_KEYS.contains(key)) {
+        output.put(key, value);
+      }
+    } else if (depth == ERROR_DEPTH && error != null) {
+      error.put(key, value);
+    }
+    return true;
+  }
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.bitcoin;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Result of a UTXO synchronisation. A full scan covers every address and every unspent output, so
+ * any other known output has been spent. An incremental scan only covers the outputs created and
+ * spent since the previous scan, and the addresses affected by them. The created outputs are not
+ * part of the result, they are passed to a consumer while the scan is running.
+ */
+public class UtxoDelta {
+  private final boolean fullScan;
+  private final Map<String, AddressBalance> balancesByAddress;
+  private final Set<UtxoId> spent;
+
+  private UtxoDelta(
+      boolean fullScan, Map<String, AddressBalance> balancesByAddress, Set<UtxoId> spent) {
+    this.fullScan = fullScan;
+    this.balancesByAddress = balancesByAddress;
+    this.spent = spent;
+  }
+
+  public static UtxoDelta fullScan(Map<String, AddressBalance> balancesByAddress) {
+    return new UtxoDelta(true, balancesByAddress, Collections.emptySet());
+  }
+
+  public static UtxoDelta incremental(
+      Map<String, AddressBalance> balancesByAddress, Set<UtxoId> spent) {
+    return new UtxoDelta(false, balancesByAddress, spent);
+  }
+
+  public boolean isFullScan() {
+    return fullScan;
+  }
+
+  /** Current balance of the scanned (full scan) or affected (incremental) addresses. */
+  public Map<String, AddressBalance> getBalancesByAddress() {
+    return balancesByAddress;
+  }
+
+  public Set<UtxoId> getSpent() {
+    return spent;
+  }
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.bitcoin;
+
+import java.util.Objects;
+
+/** Identifies a transaction output by transaction hash and output index. */
+public class UtxoId {
+  private final String txHash;
+  private final long outputIdx;
+
+  public UtxoId(String txHash, long outputIdx) {
+    this.txHash = txHash;
+    this.outputIdx = outputIdx;
+  }
+
+  public String getTxHash() {
+    return txHash;
+  }
+
+  public long getOutputIdx() {
+    return outputIdx;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    UtxoId utxoId = (UtxoId) o;
+    return outputIdx == utxoId.outputIdx && txHash.equals(utxoId.txHash);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(txHash, outputIdx);
+  }
+
+  @Override
+  public String toString() {
+    return txHash + ":" + outputIdx;
+  }
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.bitcoin;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Set of transaction outputs, each with a long value, stored in flat primitive arrays. An output
+ * is keyed by its 32-byte transaction hash (as four longs) and output index, so no objects are
+ * allocated per output. Open addressing with linear probing; outputs cannot be removed, but they
+ * can be marked, e.g. as found by a scan.
+ */
+public class UtxoSet {
+  private static final int HASH_LONGS = 4;
+  private static final int HASH_HEX_LENGTH = 64;
+  private static final int EMPTY = -1;
+
+  private long[] hashes;
+  private int[] outputIdxs;
+  private long[] values;
+  private BitSet marked;
+  private int mask;
+  private int size;
+
+  public UtxoSet(int expectedSize) {
+    // at most half full, to keep the probe sequences short
+    int capacity = Integer.highestOneBit(Math.max(16, expectedSize) * 2 - 1) << 1;
+    allocate(capacity);
+  }
+
+  private void allocate(int capacity) {
+    hashes = new long[capacity * HASH_LONGS];
+    outputIdxs = new int[capacity];
+    Arrays.fill(outputIdxs, EMPTY);
+    values = new long[capacity];
+    marked = new BitSet(capacity);
+    mask = capacity - 1;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /** Adds the output with the given value, or replaces the value if the output is present. */
+  public void put(String txHash, long outputIdx, long value) {
+    long h0 = parseHex(txHash, 0);
+    long h1 = parseHex(txHash, 1);
+    long h2 = parseHex(txHash, 2);
+    long h3 = parseHex(txHash, 3);
+    int idx = checkOutputIdx(outputIdx);
+    if ((size + 1) * 2 > outputIdxs.length) {
+      grow();
+    }
+    int slot = find(h0, h1, h2, h3, idx);
+    if (outputIdxs[slot] == EMPTY) {
+      int offset = slot * HASH_LONGS;
+      hashes[offset] = h0;
+      hashes[offset + 1] = h1;
+      hashes[offset + 2] = h2;
+      hashes[offset + 3] = h3;
+      outputIdxs[slot] = idx;
+      size++;
+    } else if (values[slot] != value) {
+      marked.clear(slot);
+    }
+    values[slot] = value;
+  }
+
+  public boolean contains(String txHash, long outputIdx) {
+    return outputIdxs[find(txHash, outputIdx)] != EMPTY;
+  }
+
+  /** Whether the output is present with the given value. */
+  public boolean contains(String txHash, long outputIdx, long value) {
+    int slot = find(txHash, outputIdx);
+    return outputIdxs[slot] != EMPTY && values[slot] == value;
+  }
+
+  /** Marks the output if it is present with the given value, and returns whether it is. */
+  public boolean mark(String txHash, long outputIdx, long value) {
+    int slot = find(txHash, outputIdx);
+    if (outputIdxs[slot] == EMPTY || values[slot] != value) {
+      return false;
+    }
+    marked.set(slot);
+    return true;
+  }
+
+  /** Whether the output is present with the given value and marked. */
+  public boolean isMarked(String txHash, long outputIdx, long value) {
+    int slot = find(txHash, outputIdx);
+    return outputIdxs[slot] != EMPTY && values[slot] == value && marked.get(slot);
+  }
+
+  private int find(String txHash, long outputIdx) {
+    return find(
+        parseHex(txHash, 0),
+        parseHex(txHash, 1),
+        parseHex(txHash, 2),
+        parseHex(txHash, 3),
+        checkOutputIdx(outputIdx));
+  }
+
+  // Returns the slot of the output, or the empty slot where it belongs.
+  private int find(long h0, long h1, long h2, long h3, int outputIdx) {
+    // the transaction hash is already uniformly distributed
+    int slot = (int) (h0 ^ (h0 >>> 32) ^ (outputIdx * 0x9E3779B9L)) & mask;
+    while (true) {
+      int storedIdx = outputIdxs[slot];
+      if (storedIdx == EMPTY) {
+        return slot;
+      }
+      int offset = slot * HASH_LONGS;
+      if (storedIdx == outputIdx
+          && hashes[offset] == h0
+          && hashes[offset + 1] == h1
+          && hashes[offset + 2] == h2
+          && hashes[offset + 3] == h3) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private void grow() {
+    long[] oldHashes = hashes;
+    int[] oldOutputIdxs = outputIdxs;
+    long[] oldValues = values;
+    BitSet oldMarked = marked;
+    allocate(oldOutputIdxs.length * 2);
+    for (int oldSlot = 0; oldSlot < oldOutputIdxs.length; oldSlot++) {
+      if (oldOutputIdxs[oldSlot] == EMPTY) {
+        continue;
+      }
+      int offset = oldSlot * HASH_LONGS;
+      int slot =
+          find(
+              oldHashes[offset],
+              oldHashes[offset + 1],
+              oldHashes[offset + 2],
+              oldHashes[offset + 3],
+              oldOutputIdxs[oldSlot]);
+      System.arraycopy(oldHashes, offset, hashes, slot * HASH_LONGS, HASH_LONGS);
+      outputIdxs[slot] = oldOutputIdxs[oldSlot];
+      values[slot] = oldValues[oldSlot];
+      marked.set(slot, oldMarked.get(oldSlot));
+    }
+  }
+
+  private static int checkOutputIdx(long outputIdx) {
+    if (outputIdx < 0 || outputIdx > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Invalid output index: " + outputIdx);
+    }
+    return (int) outputIdx;
+  }
+
+  // Parses the part-th 16 hex digits of the transaction hash.
+  private static long parseHex(String txHash, int part) {
+    if (txHash.length() != HASH_HEX_LENGTH) {
+      throw new IllegalArgumentException("Invalid transaction hash: " + txHash);
+    }
+    long result = 0;
+    for (int i = part * 16; i < part * 16 + 16; i++) {
+      int digit = Character.digit(txHash.charAt(i), 16);
+      if (digit < 0) {
+        throw new IllegalArgumentException("Invalid transaction hash: " + txHash);
+      }
+      result = (result << 4) | digit;
+    }
+    return result;
+  }
+}
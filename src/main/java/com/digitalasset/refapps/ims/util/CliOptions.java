@@ -4,8 +4,11 @@
  */
 package com.digitalasset.refapps.ims.util;
 
+import com.digitalasset.refapps.ims.bitcoin.AddressType;
+import com.digitalasset.refapps.ims.bitcoin.Network;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
@@ -26,15 +29,205 @@ public class CliOptions {
   @Option(name = "-bp", usage = "Bitcoin port", metaVar = "BITCOIN_PORT")
   private int bitcoinPort = 19091;
 
+  @Option(
+      name = "-bitcoinnetwork",
+      usage = "Bitcoin network of the owned addresses: REGTEST or TESTNET",
+      metaVar = "BITCOIN_NETWORK")
+  private Network bitcoinNetwork = Network.REGTEST;
+
   @Option(name = "-busername", usage = "Bitcoin user name", metaVar = "BITCOIN_USER_NAME")
   private String bitcoinUserName = "admin1";
 
   @Option(name = "-bpassword", usage = "Bitcoin password", metaVar = "BITCOIN_PASSWORD")
   private String bitcoinPassword = "123";
 
+  @Option(
+      name = "-bconnecttimeout",
+      usage = "Bitcoin RPC connect timeout in milliseconds",
+      metaVar = "BITCOIN_CONNECT_TIMEOUT")
+  private int bitcoinConnectTimeout = 5_000;
+
+  @Option(
+      name = "-btimeout",
+      usage = "Bitcoin RPC socket timeout in milliseconds",
+      metaVar = "BITCOIN_TIMEOUT")
+  private int bitcoinSocketTimeout = 60_000;
+
+  @Option(
+      name = "-bmaxconnections",
+      usage = "Maximum number of pooled connections to the Bitcoin RPC server",
+      metaVar = "BITCOIN_MAX_CONNECTIONS")
+  private int bitcoinMaxConnections = 8;
+
+  @Option(
+      name = "-bbatchsize",
+      usage = "Maximum number of calls per Bitcoin JSON-RPC batch request",
+      metaVar = "BITCOIN_BATCH_SIZE")
+  private int bitcoinBatchSize = 500;
+
+  @Option(
+      name = "-bcachesize",
+      usage = "Maximum number of entries per Bitcoin block data cache, 0 disables caching",
+      metaVar = "BITCOIN_CACHE_SIZE")
+  private long bitcoinCacheSize = 100_000;
+
+  @Option(
+      name = "-bcachedepth",
+      usage = "Minimum number of confirmations of block data to be cached",
+      metaVar = "BITCOIN_CACHE_DEPTH")
+  private int bitcoinCacheDepth = 6;
+
+  @Option(
+      name = "-bconcurrency",
+      usage = "Maximum number of concurrent Bitcoin RPC calls",
+      metaVar = "BITCOIN_CONCURRENCY")
+  private int bitcoinConcurrency = 4;
+
+  @Option(
+      name = "-signingthreads",
+      usage = "Number of threads signing transactions",
+      metaVar = "SIGNING_THREADS")
+  private int signingThreads = Runtime.getRuntime().availableProcessors();
+
+  @Option(
+      name = "-metricsinterval",
+      usage = "Interval in seconds of logging the metrics, 0 to disable",
+      metaVar = "METRICS_INTERVAL")
+  private int metricsInterval = 60;
+
+  @Option(
+      name = "-metricsdir",
+      usage = "Directory the metrics are written to as CSV files at every interval",
+      metaVar = "METRICS_DIR")
+  private String metricsDir;
+
+  @Option(
+      name = "-bscanchunk",
+      usage = "Maximum number of addresses per Bitcoin UTXO scan call",
+      metaVar = "BITCOIN_SCAN_CHUNK")
+  private int bitcoinAddressesPerScan = 1000;
+
+  @Option(
+      name = "-bfullscaninterval",
+      usage =
+          "Synchronise UTXOs incrementally from a block cursor, with a full scan every N-th time"
+              + " (0 always scans fully)",
+      metaVar = "BITCOIN_FULL_SCAN_INTERVAL")
+  private int bitcoinFullScanInterval = 0;
+
+  @Option(
+      name = "-feeconftarget",
+      usage = "Number of blocks within which transfers should confirm, for the fee estimation",
+      metaVar = "FEE_CONF_TARGET")
+  private int feeConfTarget = 6;
+
+  @Option(
+      name = "-feecacheinterval",
+      usage = "Seconds between two refreshes of the estimated fee rate",
+      metaVar = "FEE_CACHE_INTERVAL")
+  private int feeCacheInterval = 60;
+
+  @Option(
+      name = "-transferbatchwindow",
+      usage =
+          "Milliseconds during which new transfers are collected to be paid by one transaction"
+              + " (0 pays every transfer separately)",
+      metaVar = "TRANSFER_BATCH_WINDOW")
+  private int transferBatchWindow = 0;
+
+  @Option(
+      name = "-transferbatchsize",
+      usage = "Maximum number of transfers paid by one transaction",
+      metaVar = "TRANSFER_BATCH_SIZE")
+  private int transferBatchSize = 50;
+
+  @Option(
+      name = "-utxoreservationtimeout",
+      usage = "Seconds for which UTXOs selected for a transfer stay reserved until it is prepared",
+      metaVar = "UTXO_RESERVATION_TIMEOUT")
+  private int utxoReservationTimeout = 60;
+
+  @Option(
+      name = "-consolidationinterval",
+      usage = "Seconds between consolidations of the UTXOs of an address (0 disables them)",
+      metaVar = "CONSOLIDATION_INTERVAL")
+  private int consolidationInterval = 0;
+
+  @Option(
+      name = "-consolidationtarget",
+      usage = "Number of UTXOs per address above which they are consolidated",
+      metaVar = "CONSOLIDATION_TARGET")
+  private int consolidationTarget = 10;
+
+  @Option(
+      name = "-consolidationmaxinputs",
+      usage = "Maximum number of UTXOs merged by one consolidation",
+      metaVar = "CONSOLIDATION_MAX_INPUTS")
+  private int consolidationMaxInputs = 100;
+
+  @Option(
+      name = "-consolidationmaxfeerate",
+      usage = "Fee rate in satoshi per 1000 virtual bytes above which UTXOs are not consolidated",
+      metaVar = "CONSOLIDATION_MAX_FEE_RATE")
+  private long consolidationMaxFeeRate = 5_000;
+
   @Option(name = "-keyfile", usage = "Key file")
   private String keyFile = "src/main/resources/secretKeyStore.regtest.txt";
 
+  @Option(
+      name = "-changeseedfile",
+      usage = "Seed of the change addresses, generated if missing",
+      metaVar = "CHANGE_SEED_FILE")
+  private String changeSeedFile = "src/main/resources/changeSeed.regtest.txt";
+
+  @Option(
+      name = "-changechunksize",
+      usage = "Number of change addresses derived and registered at a time (0 disables them)",
+      metaVar = "CHANGE_CHUNK_SIZE")
+  private int changeChunkSize = 20;
+
+  @Option(
+      name = "-changeaddresstype",
+      usage = "Type of the change addresses: P2WPKH (SegWit) or P2PKH",
+      metaVar = "CHANGE_ADDRESS_TYPE")
+  private AddressType changeAddressType = AddressType.P2WPKH;
+
+  @Option(
+      name = "-keyindex",
+      usage = "Address index of the key file, built if missing (default: the key file + .idx)",
+      metaVar = "KEY_INDEX")
+  private String keyIndex;
+
+  @Option(
+      name = "-keycachesize",
+      usage = "Maximum number of decoded private keys kept in memory",
+      metaVar = "KEY_CACHE_SIZE")
+  private int keyCacheSize = 10_000;
+
+  @Option(
+      name = "-submissionmaxcommands",
+      usage = "Maximum number of commands per ledger submission, 0 for no limit",
+      metaVar = "SUBMISSION_MAX_COMMANDS")
+  private int submissionMaxCommands = 100;
+
+  @Option(
+      name = "-submissionmaxbytes",
+      usage = "Maximum estimated payload of a ledger submission in bytes, 0 for no limit",
+      metaVar = "SUBMISSION_MAX_BYTES")
+  private int submissionMaxBytes = 1_000_000;
+
+  @Option(
+      name = "-submissionwindow",
+      usage = "Maximum number of ledger submissions waiting for their completion",
+      metaVar = "SUBMISSION_WINDOW")
+  private int submissionWindow = 32;
+
+  @Option(
+      name = "-completiontimeout",
+      usage = "Seconds to wait for the completion of a ledger submission",
+      metaVar = "COMPLETION_TIMEOUT")
+  private int completionTimeout = 60;
+
   @Argument private List<String> arguments = new ArrayList<String>();
 
   public String getSandboxHost() {
@@ -49,6 +242,30 @@ public class CliOptions {
     return keyFile;
   }
 
+  public String getChangeSeedFile() {
+    return changeSeedFile;
+  }
+
+  public int getChangeChunkSize() {
+    return changeChunkSize;
+  }
+
+  public AddressType getChangeAddressType() {
+    return changeAddressType;
+  }
+
+  public String getKeyIndex() {
+    return keyIndex != null ? keyIndex : keyFile + ".idx";
+  }
+
+  public int getKeyCacheSize() {
+    return keyCacheSize;
+  }
+
+  public Network getBitcoinNetwork() {
+    return bitcoinNetwork;
+  }
+
   public String getBitcoinUrl() {
     return String.format("http://%s:%s", bitcoinHost, bitcoinPort);
   }
@@ -61,6 +278,106 @@ public class CliOptions {
     return bitcoinPassword;
   }
 
+  public int getBitcoinConnectTimeout() {
+    return bitcoinConnectTimeout;
+  }
+
+  public int getBitcoinSocketTimeout() {
+    return bitcoinSocketTimeout;
+  }
+
+  public int getBitcoinMaxConnections() {
+    return bitcoinMaxConnections;
+  }
+
+  public int getBitcoinBatchSize() {
+    return bitcoinBatchSize;
+  }
+
+  public int getBitcoinAddressesPerScan() {
+    return bitcoinAddressesPerScan;
+  }
+
+  public int getBitcoinFullScanInterval() {
+    return bitcoinFullScanInterval;
+  }
+
+  public long getBitcoinCacheSize() {
+    return bitcoinCacheSize;
+  }
+
+  public int getBitcoinCacheDepth() {
+    return bitcoinCacheDepth;
+  }
+
+  public int getBitcoinConcurrency() {
+    return bitcoinConcurrency;
+  }
+
+  public int getSigningThreads() {
+    return signingThreads;
+  }
+
+  public int getMetricsInterval() {
+    return metricsInterval;
+  }
+
+  public int getFeeConfTarget() {
+    return feeConfTarget;
+  }
+
+  public int getFeeCacheInterval() {
+    return feeCacheInterval;
+  }
+
+  public int getTransferBatchWindow() {
+    return transferBatchWindow;
+  }
+
+  public int getTransferBatchSize() {
+    return transferBatchSize;
+  }
+
+  public int getUtxoReservationTimeout() {
+    return utxoReservationTimeout;
+  }
+
+  public int getConsolidationInterval() {
+    return consolidationInterval;
+  }
+
+  public int getConsolidationTarget() {
+    return consolidationTarget;
+  }
+
+  public int getConsolidationMaxInputs() {
+    return consolidationMaxInputs;
+  }
+
+  public long getConsolidationMaxFeeRate() {
+    return consolidationMaxFeeRate;
+  }
+
+  public int getSubmissionMaxCommands() {
+    return submissionMaxCommands;
+  }
+
+  public int getSubmissionMaxBytes() {
+    return submissionMaxBytes;
+  }
+
+  public int getSubmissionWindow() {
+    return submissionWindow;
+  }
+
+  public int getCompletionTimeout() {
+    return completionTimeout;
+  }
+
+  public Optional<String> getMetricsDir() {
+    return Optional.ofNullable(metricsDir);
+  }
+
   public static CliOptions parseArgs(String[] args) {
     CliOptions options = new CliOptions();
     CmdLineParser parser = new CmdLineParser(options);
@@ -0,0 +1,260 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.util;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.daml.ledger.javaapi.data.Completion;
+import com.daml.ledger.javaapi.data.LedgerOffset;
+import com.daml.ledger.javaapi.data.SubmitCommandsRequest;
+import com.daml.ledger.rxjava.CommandCompletionClient;
+import com.daml.ledger.rxjava.LedgerClient;
+import io.grpc.Status;
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Submits commands asynchronously and takes their results from the command completion stream by
+ * command id, instead of waiting for the transaction of each submission (submitAndWait). At most
+ * maxInFlight submissions wait for their completion, the others are queued. Submissions that get
+ * no completion within the timeout fail; submissions the ledger cannot take right now (unavailable,
+ * resource exhausted) are submitted again with the same command id. If the completion stream
+ * fails, it is subscribed again with an exponential backoff, from the last checkpoint. Exposes the
+ * submissions in flight and queued (ledger.submissions.in-flight, ledger.submissions.queued), the
+ * time from submission to completion (ledger.submissions.latency), and the rejected, timed out and
+ * retried submissions (ledger.submissions.rejected, ledger.submissions.timeouts,
+ * ledger.submissions.retries).
+ */
+public class CommandSubmitter {
+  private static final Logger logger = LoggerFactory.getLogger(CommandSubmitter.class);
+  private static final int MAX_RETRIES = 5;
+  private static final long RETRY_BACKOFF_MILLIS = 100;
+  private static final long MAX_RESUBSCRIBE_BACKOFF_MILLIS = 30_000;
+
+  private final LedgerClient ledgerClient;
+  private final String applicationId;
+  private final Set<String> parties;
+  private final int maxInFlight;
+  private final Duration completionTimeout;
+  private final Map<String, Submission> inFlight = new ConcurrentHashMap<>();
+  private final Deque<Submission> queued = new ArrayDeque<>();
+  private int permits;
+  // the offset of the last checkpoint of the completion stream, where it is resumed
+  private volatile LedgerOffset offset;
+  private final Timer latency;
+  private final Counter rejected;
+  private final Counter timeouts;
+  private final Counter retries;
+
+  public CommandSubmitter(
+      LedgerClient ledgerClient,
+      String applicationId,
+      Set<String> parties,
+      int maxInFlight,
+      Duration completionTimeout,
+      MetricRegistry metricRegistry) {
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+    }
+    this.ledgerClient = ledgerClient;
+    this.applicationId = applicationId;
+    this.parties = parties;
+    this.maxInFlight = maxInFlight;
+    this.permits = maxInFlight;
+    this.completionTimeout = completionTimeout;
+    metricRegistry.gauge("ledger.submissions.in-flight", () -> (Gauge<Integer>) inFlight::size);
+    metricRegistry.gauge("ledger.submissions.queued", () -> (Gauge<Integer>) this::queuedCount);
+    this.latency = metricRegistry.timer("ledger.submissions.latency");
+    this.rejected = metricRegistry.counter("ledger.submissions.rejected");
+    this.timeouts = metricRegistry.counter("ledger.submissions.timeouts");
+    this.retries = metricRegistry.counter("ledger.submissions.retries");
+  }
+
+  /** Subscribes to the completions of the parties, from the current end of the stream. */
+  public void start() {
+    CommandCompletionClient completionClient = ledgerClient.getCommandCompletionClient();
+    offset = completionClient.completionEnd().blockingGet().getOffset();
+    // failures since the last response, which double the backoff
+    AtomicInteger failures = new AtomicInteger();
+    Flowable.defer(() -> completionClient.completionStream(applicationId, offset, parties))
+        .doOnNext(
+            response -> {
+              failures.set(0);
+              response.getCheckpoint().ifPresent(checkpoint -> offset = checkpoint.getOffset());
+            })
+        .retryWhen(
+            errors ->
+                errors.flatMap(
+                    e -> {
+                      long backoff =
+                          Math.min(
+                              RETRY_BACKOFF_MILLIS << Math.min(failures.getAndIncrement(), 16),
+                              MAX_RESUBSCRIBE_BACKOFF_MILLIS);
+                      logger.warn(
+                          "The completion stream failed, resubscribing in {} ms.", backoff, e);
+                      return Flowable.timer(backoff, TimeUnit.MILLISECONDS);
+                    }))
+        .subscribe(
+            response -> response.getCompletions().forEach(this::complete),
+            e -> logger.error("The completion stream failed.", e));
+  }
+
+  /** Completes when the commands are committed, fails when they are rejected or time out. */
+  public Completable submit(SubmitCommandsRequest request) {
+    return Completable.defer(
+        () -> {
+          Submission submission = new Submission(request);
+          enqueue(submission);
+          return Completable.create(
+              emitter ->
+                  submission.result.whenComplete(
+                      (done, error) -> {
+                        if (error == null) {
+                          emitter.onComplete();
+                        } else {
+                          emitter.onError(error);
+                        }
+                      }));
+        });
+  }
+
+  private synchronized int queuedCount() {
+    return queued.size();
+  }
+
+  private void enqueue(Submission submission) {
+    synchronized (this) {
+      if (permits == 0) {
+        queued.add(submission);
+        return;
+      }
+      permits--;
+    }
+    send(submission);
+  }
+
+  private void release() {
+    Submission next;
+    synchronized (this) {
+      next = queued.poll();
+      if (next == null) {
+        permits = Math.min(permits + 1, maxInFlight);
+        return;
+      }
+    }
+    send(next);
+  }
+
+  private void send(Submission submission) {
+    String commandId = submission.request.getCommandId();
+    submission.timer = latency.time();
+    // registered before submitting, so that the completion cannot arrive first
+    inFlight.put(commandId, submission);
+    submission.timeout =
+        Schedulers.computation()
+            .scheduleDirect(
+                () -> {
+                  if (finish(commandId, new TimeoutException("No completion for " + commandId))) {
+                    timeouts.inc();
+                  }
+                },
+                completionTimeout.toMillis(),
+                TimeUnit.MILLISECONDS);
+    submit(submission, 0);
+  }
+
+  private void submit(Submission submission, int attempt) {
+    SubmitCommandsRequest request = submission.request;
+    ledgerClient
+        .getCommandSubmissionClient()
+        .submit(
+            request.getWorkflowId(),
+            request.getApplicationId(),
+            request.getCommandId(),
+            request.getParty(),
+            request.getMinLedgerTimeAbsolute(),
+            request.getMinLedgerTimeRelative(),
+            request.getDeduplicationTime(),
+            request.getCommands())
+        .subscribe(
+            accepted -> {},
+            e -> {
+              Status.Code code = Status.fromThrowable(e).getCode();
+              if (attempt > 0 && code == Status.Code.ALREADY_EXISTS) {
+                // an earlier attempt was accepted, its completion follows
+                return;
+              }
+              if (attempt < MAX_RETRIES
+                  && (code == Status.Code.UNAVAILABLE || code == Status.Code.RESOURCE_EXHAUSTED)) {
+                retries.inc();
+                Schedulers.computation()
+                    .scheduleDirect(
+                        () -> submit(submission, attempt + 1),
+                        RETRY_BACKOFF_MILLIS << attempt,
+                        TimeUnit.MILLISECONDS);
+              } else if (finish(request.getCommandId(), e)) {
+                rejected.inc();
+              }
+            });
+  }
+
+  private void complete(Completion completion) {
+    com.google.rpc.Status status = completion.getStatus();
+    if (status.getCode() == Status.Code.OK.value()) {
+      finish(completion.getCommandId(), null);
+    } else if (finish(
+        completion.getCommandId(),
+        new IllegalStateException(
+            "Command " + completion.getCommandId() + " rejected: " + status.getMessage()))) {
+      rejected.inc();
+    }
+  }
+
+  // Returns whether the submission was still in flight, it may have timed out or be another
+  // application instance's.
+  private boolean finish(String commandId, Throwable error) {
+    Submission submission = inFlight.remove(commandId);
+    if (submission == null) {
+      return false;
+    }
+    submission.timer.stop();
+    submission.timeout.dispose();
+    if (error == null) {
+      submission.result.complete(null);
+    } else {
+      submission.result.completeExceptionally(error);
+    }
+    release();
+    return true;
+  }
+
+  private static class Submission {
+    private final SubmitCommandsRequest request;
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+    private Timer.Context timer;
+    // set before the submission is sent, so before it can finish
+    private volatile Disposable timeout;
+
+    private Submission(SubmitCommandsRequest request) {
+      this.request = request;
+    }
+  }
+}
@@ -10,13 +10,15 @@ import com.daml.ledger.javaapi.data.Identifier;
 import com.daml.ledger.javaapi.data.SubmitCommandsRequest;
 import com.daml.ledger.rxjava.components.helpers.CommandsAndPendingSet;
 import io.reactivex.Flowable;
-import io.reactivex.Maybe;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import org.pcollections.HashTreePMap;
 import org.pcollections.HashTreePSet;
@@ -24,24 +26,38 @@ import org.pcollections.PSet;
 
 /**
  * Bots' "calculateCommands" need to emit an object containing commands to execute and a pending
- * contract set. This builder simplifies that task.
+ * contract set. This builder simplifies that task. The commands are split into submissions of at
+ * most the maximum number of commands and estimated payload size (0 for no limit), so that a large
+ * batch of commands is not one large ledger transaction that times out or fails as a whole; each
+ * submission has the pending set of its own commands.
  */
 public class CommandsAndPendingSetBuilder {
   public static Factory factory(String applicationId, Duration mrtDuration) {
-    return new Factory(applicationId, mrtDuration);
+    return new Factory(applicationId, mrtDuration, 0, 0);
+  }
+
+  public static Factory factory(
+      String applicationId, Duration mrtDuration, int maxCommands, int maxPayloadBytes) {
+    return new Factory(applicationId, mrtDuration, maxCommands, maxPayloadBytes);
   }
 
   public static class Factory {
     private final String applicationId;
     private Duration mrtDuration;
+    private final int maxCommands;
+    private final int maxPayloadBytes;
 
-    public Factory(String applicationId, Duration mrtDuration) {
+    public Factory(
+        String applicationId, Duration mrtDuration, int maxCommands, int maxPayloadBytes) {
       this.applicationId = applicationId;
       this.mrtDuration = mrtDuration;
+      this.maxCommands = maxCommands;
+      this.maxPayloadBytes = maxPayloadBytes;
     }
 
     public CommandsAndPendingSetBuilder create(String party, String workflowId) {
-      return new CommandsAndPendingSetBuilder(applicationId, party, workflowId, mrtDuration);
+      return new CommandsAndPendingSetBuilder(
+          applicationId, party, workflowId, mrtDuration, maxCommands, maxPayloadBytes);
     }
   }
 
@@ -49,13 +65,22 @@ public class CommandsAndPendingSetBuilder {
   private final String party;
   private final String workflowId;
   private final Duration mrtDuration;
+  private final int maxCommands;
+  private final int maxPayloadBytes;
 
   CommandsAndPendingSetBuilder(
-      String appId, String party, String workflowId, Duration mrtDuration) {
+      String appId,
+      String party,
+      String workflowId,
+      Duration mrtDuration,
+      int maxCommands,
+      int maxPayloadBytes) {
     this.appId = appId;
     this.party = party;
     this.workflowId = workflowId;
     this.mrtDuration = mrtDuration;
+    this.maxCommands = maxCommands;
+    this.maxPayloadBytes = maxPayloadBytes;
   }
 
   public Builder newBuilder() {
@@ -63,43 +88,85 @@ public class CommandsAndPendingSetBuilder {
   }
 
   public final class Builder {
-    private List<Command> commands = new ArrayList<>();
-    private Map<Identifier, PSet<String>> pendingContractIds = new HashMap<>();
+    private final List<Submission> submissions = new ArrayList<>();
+    private Submission current = new Submission();
 
     public void addCommand(Command cmd) {
-      commands.add(cmd);
-      if (cmd instanceof ExerciseCommand) {
-        ExerciseCommand ecmd = (ExerciseCommand) cmd;
-        pendingContractIds.compute(
-            ecmd.getTemplateId(),
-            (k, v) ->
-                (v == null)
-                    ? HashTreePSet.singleton(ecmd.getContractId())
-                    : v.plus(ecmd.getContractId()));
+      addCommands(Collections.singletonList(cmd));
+    }
+
+    /**
+     * Adds commands that must be submitted together, in one ledger transaction. They are not split
+     * even if they exceed the limits.
+     */
+    public void addCommands(List<? extends Command> cmds) {
+      int payloadBytes = 0;
+      if (maxPayloadBytes > 0) {
+        for (Command cmd : cmds) {
+          payloadBytes += cmd.toProtoCommand().getSerializedSize();
+        }
       }
+      if (!current.commands.isEmpty() && !current.fits(cmds.size(), payloadBytes)) {
+        submissions.add(current);
+        current = new Submission();
+      }
+      current.add(cmds, payloadBytes);
     }
 
-    public Optional<CommandsAndPendingSet> build() {
-      if (commands.isEmpty() && pendingContractIds.isEmpty()) {
-        return Optional.empty();
-      } else {
-        SubmitCommandsRequest commandsRequest =
-            new SubmitCommandsRequest(
-                workflowId,
-                appId,
-                UUID.randomUUID().toString(),
-                party,
-                Optional.empty(),
-                Optional.of(mrtDuration),
-                Optional.empty(),
-                commands);
-        return Optional.of(
-            new CommandsAndPendingSet(commandsRequest, HashTreePMap.from(pendingContractIds)));
+    public List<CommandsAndPendingSet> build() {
+      List<CommandsAndPendingSet> commandsAndPendingSets = new ArrayList<>();
+      for (Submission submission : submissions) {
+        commandsAndPendingSets.add(submission.build());
+      }
+      if (!current.commands.isEmpty()) {
+        commandsAndPendingSets.add(current.build());
       }
+      return commandsAndPendingSets;
     }
 
     public Flowable<CommandsAndPendingSet> buildFlowable() {
-      return build().map(Maybe::just).orElse(Maybe.empty()).toFlowable();
+      return Flowable.fromIterable(build());
+    }
+  }
+
+  private final class Submission {
+    private final List<Command> commands = new ArrayList<>();
+    // plain sets while adding, converted to persistent ones once per submission
+    private final Map<Identifier, Set<String>> pendingContractIds = new HashMap<>();
+    private int payloadBytes;
+
+    private boolean fits(int commandCount, int commandBytes) {
+      return (maxCommands <= 0 || commands.size() + commandCount <= maxCommands)
+          && (maxPayloadBytes <= 0 || payloadBytes + commandBytes <= maxPayloadBytes);
+    }
+
+    private void add(List<? extends Command> cmds, int commandBytes) {
+      for (Command cmd : cmds) {
+        commands.add(cmd);
+        if (cmd instanceof ExerciseCommand) {
+          ExerciseCommand ecmd = (ExerciseCommand) cmd;
+          pendingContractIds
+              .computeIfAbsent(ecmd.getTemplateId(), k -> new HashSet<>())
+              .add(ecmd.getContractId());
+        }
+      }
+      payloadBytes += commandBytes;
+    }
+
+    private CommandsAndPendingSet build() {
+      SubmitCommandsRequest commandsRequest =
+          new SubmitCommandsRequest(
+              workflowId,
+              appId,
+              UUID.randomUUID().toString(),
+              party,
+              Optional.empty(),
+              Optional.of(mrtDuration),
+              Optional.empty(),
+              commands);
+      Map<Identifier, PSet<String>> pendingSets = new HashMap<>();
+      pendingContractIds.forEach((k, v) -> pendingSets.put(k, HashTreePSet.from(v)));
+      return new CommandsAndPendingSet(commandsRequest, HashTreePMap.from(pendingSets));
     }
   }
 }
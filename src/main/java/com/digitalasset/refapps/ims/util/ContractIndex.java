@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.util;
+
+import com.daml.ledger.javaapi.data.Template;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * The contracts of one template by contract id, with optional secondary indexes, kept up to date
+ * from the created and archived contracts of each ledger delta instead of being collected from the
+ * ledger view on every event like TemplateManager.filterTemplates. A bot applies every delta to
+ * all of its indexes, including when it has nothing to do for the delta. Contracts can also be
+ * added and removed directly. Queries return read-only views, which change with the index. Not
+ * thread-safe: a bot uses its indexes from its process method.
+ */
+public class ContractIndex<C extends Template> {
+  private final Class<C> type;
+  private final Map<String, C> contracts = new HashMap<>();
+  private final Map<String, C> contractsView = Collections.unmodifiableMap(contracts);
+  private final List<SecondaryIndex<?, C>> secondaryIndexes = new ArrayList<>();
+  private long version;
+
+  public ContractIndex(Class<C> type) {
+    this.type = type;
+  }
+
+  /** Adds an index of the contracts by the given key. */
+  public <K> SecondaryIndex<K, C> addIndex(Function<C, K> key) {
+    SecondaryIndex<K, C> index = new SecondaryIndex<>(key);
+    contracts.forEach(index::add);
+    secondaryIndexes.add(index);
+    return index;
+  }
+
+  /** Applies the contracts created and archived by the delta. */
+  public ContractIndex<C> apply(LedgerDelta delta) {
+    delta.getArchived().forEach(this::remove);
+    delta
+        .getCreated()
+        .forEach(
+            (cid, contract) -> {
+              if (type.isInstance(contract)) {
+                add(cid, type.cast(contract));
+              }
+            });
+    return this;
+  }
+
+  public void add(String cid, C contract) {
+    version++;
+    contracts.put(cid, contract);
+    secondaryIndexes.forEach(index -> index.add(cid, contract));
+  }
+
+  public void remove(String cid) {
+    C contract = contracts.remove(cid);
+    if (contract != null) {
+      version++;
+      secondaryIndexes.forEach(index -> index.remove(cid, contract));
+    }
+  }
+
+  public Map<String, C> getAll() {
+    return contractsView;
+  }
+
+  /** Changes with every added or removed contract, to tell whether derived data is stale. */
+  public long getVersion() {
+    return version;
+  }
+
+  public boolean isEmpty() {
+    return contracts.isEmpty();
+  }
+
+  /** The contracts of an index by the key of every contract. */
+  public static class SecondaryIndex<K, C> {
+    private final Function<C, K> key;
+    private final Map<K, Map<String, C>> contractsByKey = new HashMap<>();
+
+    private SecondaryIndex(Function<C, K> key) {
+      this.key = key;
+    }
+
+    public Map<String, C> get(K key) {
+      Map<String, C> contracts = contractsByKey.get(key);
+      return contracts != null ? Collections.unmodifiableMap(contracts) : Collections.emptyMap();
+    }
+
+    public Set<K> keys() {
+      return Collections.unmodifiableSet(contractsByKey.keySet());
+    }
+
+    private void add(String cid, C contract) {
+      contractsByKey.computeIfAbsent(key.apply(contract), k -> new HashMap<>()).put(cid, contract);
+    }
+
+    private void remove(String cid, C contract) {
+      K contractKey = key.apply(contract);
+      Map<String, C> contracts = contractsByKey.get(contractKey);
+      if (contracts != null) {
+        contracts.remove(cid);
+        if (contracts.isEmpty()) {
+          contractsByKey.remove(contractKey);
+        }
+      }
+    }
+  }
+}
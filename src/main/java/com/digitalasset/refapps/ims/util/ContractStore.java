@@ -0,0 +1,65 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.util;
+
+import com.daml.ledger.javaapi.data.Template;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * The active contracts of a LedgerSubscription, updated from the created and archived events and
+ * shared by its bots. They can be queried through a ContractIndex per template, created on first
+ * use.
+ */
+public class ContractStore {
+  private final Map<String, Template> contracts = new HashMap<>();
+  private final Map<Class<?>, ContractIndex<?>> indexes = new HashMap<>();
+
+  /** The index of the contracts of the template class. */
+  @SuppressWarnings("unchecked")
+  public <C extends Template> ContractIndex<C> index(Class<C> type) {
+    return (ContractIndex<C>)
+        indexes.computeIfAbsent(
+            type,
+            t -> {
+              ContractIndex<C> index = new ContractIndex<>(type);
+              contracts.forEach(
+                  (cid, contract) -> {
+                    if (type.isInstance(contract)) {
+                      index.add(cid, type.cast(contract));
+                    }
+                  });
+              return index;
+            });
+  }
+
+  public Optional<Template> get(String cid) {
+    return Optional.ofNullable(contracts.get(cid));
+  }
+
+  void add(String cid, Template contract) {
+    contracts.put(cid, contract);
+    ContractIndex<Template> index = indexOf(contract);
+    if (index != null) {
+      index.add(cid, contract);
+    }
+  }
+
+  void remove(String cid) {
+    Template contract = contracts.remove(cid);
+    if (contract != null) {
+      ContractIndex<Template> index = indexOf(contract);
+      if (index != null) {
+        index.remove(cid);
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private ContractIndex<Template> indexOf(Template contract) {
+    return (ContractIndex<Template>) indexes.get(contract.getClass());
+  }
+}
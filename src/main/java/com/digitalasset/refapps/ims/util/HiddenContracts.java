@@ -0,0 +1,72 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.util;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The pending contracts of the submissions of a bot that are in flight, which are hidden from the
+ * bot. A contract can be pending in several submissions, e.g. when the commands of a bot are split
+ * into chunks, so it is counted once per submission and only released by the last one to
+ * complete. The changes are taken by the LedgerSubscription, while it holds the lock of this
+ * object.
+ */
+final class HiddenContracts {
+  // contract id -> number of submissions in flight it is pending in
+  private final Map<String, Integer> hidden = new HashMap<>();
+  // hidden, but not passed to the bot as archived yet
+  private final Set<String> hiding = new HashSet<>();
+  // no longer hidden, but not passed to the bot as created again yet
+  private final Set<String> released = new HashSet<>();
+
+  synchronized void hide(Collection<String> contractIds) {
+    for (String contractId : contractIds) {
+      // a contract released and hidden again before the bot saw it is still archived for the bot
+      if (hidden.merge(contractId, 1, Integer::sum) == 1 && !released.remove(contractId)) {
+        hiding.add(contractId);
+      }
+    }
+  }
+
+  /** Releases the contracts of a submission that completed. */
+  synchronized void release(Collection<String> contractIds) {
+    for (String contractId : contractIds) {
+      Integer count = hidden.get(contractId);
+      if (count == null) {
+        // archived on the ledger meanwhile
+        continue;
+      }
+      if (count > 1) {
+        hidden.put(contractId, count - 1);
+      } else {
+        hidden.remove(contractId);
+        released.add(contractId);
+      }
+    }
+  }
+
+  /** Whether the contract was hidden, which it no longer is after it was archived on the ledger. */
+  synchronized boolean archive(String contractId) {
+    return hidden.remove(contractId) != null;
+  }
+
+  /** The contracts hidden since the last call, to pass to the bot as archived. */
+  synchronized Set<String> takeHiding() {
+    Set<String> taken = new HashSet<>(hiding);
+    hiding.clear();
+    return taken;
+  }
+
+  /** The contracts released since the last call, to pass to the bot as created again. */
+  synchronized Set<String> takeReleased() {
+    Set<String> taken = new HashSet<>(released);
+    released.clear();
+    return taken;
+  }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.util;
+
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the contracts a bot is processing asynchronously. The ledger view only marks contracts as
+ * pending once the commands are emitted, so without tracking, every ledger event in between would
+ * trigger the same work again. A contract stays claimed while its work is running, and afterwards
+ * until it disappears from the ledger view or the timeout passes (e.g. the command failed).
+ */
+public class InFlightContracts {
+  private static final Logger logger = LoggerFactory.getLogger(InFlightContracts.class);
+
+  private final Duration timeout;
+  // contract id -> end of the claim, Instant.MAX while the work is running
+  private final Map<String, Instant> claims = new HashMap<>();
+
+  public InFlightContracts(Duration timeout) {
+    this.timeout = timeout;
+  }
+
+  /**
+   * Claims the active contracts that are not claimed yet and returns them. Claims of contracts
+   * that are no longer active or have timed out are dropped.
+   */
+  public synchronized Set<String> claim(Collection<String> activeContractIds) {
+    Instant now = Instant.now();
+    claims
+        .entrySet()
+        .removeIf(
+            claim -> !activeContractIds.contains(claim.getKey()) || claim.getValue().isBefore(now));
+    Set<String> claimed = new LinkedHashSet<>();
+    for (String contractId : activeContractIds) {
+      if (claims.putIfAbsent(contractId, Instant.MAX) == null) {
+        claimed.add(contractId);
+      }
+    }
+    return claimed;
+  }
+
+  /** Starts the timeout of the claims, their commands have been emitted. */
+  public synchronized void complete(Collection<String> contractIds) {
+    Instant end = Instant.now().plus(timeout);
+    contractIds.forEach(contractId -> claims.replace(contractId, end));
+  }
+
+  /** Drops the claims, so that the contracts are processed again on the next ledger event. */
+  public synchronized void release(Collection<String> contractIds) {
+    claims.keySet().removeAll(contractIds);
+  }
+
+  /**
+   * Emits the results of the asynchronous work on the claimed contracts. If the work fails, the
+   * error is logged and the claims are released instead of terminating the bot.
+   */
+  public <T> Flowable<T> toFlowable(Collection<String> claimed, CompletableFuture<List<T>> work) {
+    return Single.<List<T>>create(
+            emitter ->
+                work.whenComplete(
+                    (result, error) -> {
+                      if (error == null) {
+                        complete(claimed);
+                        emitter.onSuccess(result);
+                      } else {
+                        logger.warn("Processing of {} failed, will retry.", claimed, error);
+                        release(claimed);
+                        emitter.onSuccess(Collections.emptyList());
+                      }
+                    }))
+        .flatMapPublisher(Flowable::fromIterable);
+  }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.util;
+
+import com.daml.ledger.javaapi.data.Template;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The changes of the ledger passed to a bot by a LedgerSubscription: the contracts of its
+ * templates created and archived since its last invocation, and the store of all active contracts
+ * of the subscription (after the changes). Contracts whose commands are in flight are passed as
+ * archived, and as created again if they are still active after the commands.
+ */
+public class LedgerDelta {
+  private final Map<String, Template> created;
+  private final Set<String> archived;
+  private final ContractStore contracts;
+
+  LedgerDelta(Map<String, Template> created, Set<String> archived, ContractStore contracts) {
+    this.created = Collections.unmodifiableMap(created);
+    this.archived = Collections.unmodifiableSet(archived);
+    this.contracts = contracts;
+  }
+
+  public Map<String, Template> getCreated() {
+    return created;
+  }
+
+  /** The created contracts of the template class. */
+  public <C extends Template> Map<String, C> getCreated(Class<C> type) {
+    Map<String, C> createdOfType = new HashMap<>();
+    created.forEach(
+        (cid, contract) -> {
+          if (type.isInstance(contract)) {
+            createdOfType.put(cid, type.cast(contract));
+          }
+        });
+    return createdOfType;
+  }
+
+  public Set<String> getArchived() {
+    return archived;
+  }
+
+  public ContractStore getContracts() {
+    return contracts;
+  }
+
+  public boolean isEmpty() {
+    return created.isEmpty() && archived.isEmpty();
+  }
+}
@@ -0,0 +1,297 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.util;
+
+import com.daml.ledger.javaapi.data.ArchivedEvent;
+import com.daml.ledger.javaapi.data.CreatedEvent;
+import com.daml.ledger.javaapi.data.Event;
+import com.daml.ledger.javaapi.data.Filter;
+import com.daml.ledger.javaapi.data.FiltersByParty;
+import com.daml.ledger.javaapi.data.GetActiveContractsResponse;
+import com.daml.ledger.javaapi.data.Identifier;
+import com.daml.ledger.javaapi.data.InclusiveFilter;
+import com.daml.ledger.javaapi.data.LedgerOffset;
+import com.daml.ledger.javaapi.data.Template;
+import com.daml.ledger.javaapi.data.Transaction;
+import com.daml.ledger.javaapi.data.TransactionFilter;
+import com.daml.ledger.javaapi.data.WorkflowEvent;
+import com.daml.ledger.rxjava.LedgerClient;
+import com.daml.ledger.rxjava.components.helpers.CommandsAndPendingSet;
+import com.daml.ledger.rxjava.components.helpers.CreatedContract;
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.processors.FlowableProcessor;
+import io.reactivex.processors.PublishProcessor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One subscription to the ledger for all bots of a party, instead of one per bot like Bot.wire:
+ * it reads the active contracts and then the transactions of the templates of all bots, decodes
+ * every contract once into a shared ContractStore, and fans the changes out to the bots as
+ * LedgerDeltas, each with the contracts of the templates of its own filter. The bots are invoked
+ * sequentially, with deltas only (so the cost of an event depends on its size, not on the number
+ * of active contracts).
+ *
+ * <p>The commands of the bots are submitted with the CommandSubmitter. Like the pending sets of
+ * Bot.wire, the pending contracts of the commands of a bot are passed to it as archived while the
+ * commands are in flight. Once the transactions of all commands a contract is pending in have
+ * been processed, or these commands failed, the contract is passed to the bot as created again if
+ * it is still active.
+ *
+ * <p>A bot that fails is logged and skipped for that change, the other bots still get it. If the
+ * transaction stream fails, it is subscribed again from the offset of the last transaction.
+ */
+public class LedgerSubscription {
+  private static final Logger logger = LoggerFactory.getLogger(LedgerSubscription.class);
+  private static final long RESUBSCRIBE_DELAY_MILLIS = 1000;
+
+  private final LedgerClient ledgerClient;
+  private final String party;
+  private final CommandSubmitter commandSubmitter;
+  private final ContractStore contracts = new ContractStore();
+  private final Map<Identifier, Function<CreatedContract, Template>> transforms = new HashMap<>();
+  private final List<Subscriber> subscribers = new ArrayList<>();
+  // signals released contracts, which are passed to the bots with the next (possibly empty) change
+  private final FlowableProcessor<Boolean> releases =
+      PublishProcessor.<Boolean>create().toSerialized();
+  // releases of the pending contracts of the commands in flight, by command id
+  private final Map<String, Runnable> pendingReleases = new ConcurrentHashMap<>();
+  // the offset of the last transaction received, where the transaction stream is resumed
+  private volatile LedgerOffset offset = LedgerOffset.LedgerBegin.getInstance();
+
+  public LedgerSubscription(
+      LedgerClient ledgerClient, String party, CommandSubmitter commandSubmitter) {
+    this.ledgerClient = ledgerClient;
+    this.party = party;
+    this.commandSubmitter = commandSubmitter;
+  }
+
+  /**
+   * Adds a bot with the templates of the party in its filter, which must be an inclusive filter.
+   * The transform decodes the contracts of these templates.
+   */
+  public LedgerSubscription register(
+      TransactionFilter transactionFilter,
+      Function<LedgerDelta, Flowable<CommandsAndPendingSet>> bot,
+      Function<CreatedContract, Template> transform) {
+    Filter filter =
+        transactionFilter instanceof FiltersByParty
+            ? ((FiltersByParty) transactionFilter).getPartyToFilters().get(party)
+            : null;
+    if (!(filter instanceof InclusiveFilter)) {
+      throw new IllegalArgumentException("The bot has no template filter for " + party);
+    }
+    Set<Identifier> templateIds = ((InclusiveFilter) filter).getTemplateIds();
+    templateIds.forEach(templateId -> transforms.putIfAbsent(templateId, transform));
+    subscribers.add(new Subscriber(templateIds, bot));
+    return this;
+  }
+
+  /** Subscribes to the ledger. */
+  public void start() {
+    TransactionFilter transactionFilter =
+        new FiltersByParty(
+            Collections.singletonMap(party, new InclusiveFilter(transforms.keySet())));
+    Flowable<GetActiveContractsResponse> activeContracts =
+        ledgerClient
+            .getActiveContractSetClient()
+            .getActiveContracts(transactionFilter, true)
+            .cache();
+    // the transactions start at the offset of the active contracts, sent with the last response
+    Flowable<Transaction> transactions =
+        activeContracts
+            .reduce(Optional.<String>empty(), LedgerSubscription::latestOffset)
+            .flatMapPublisher(
+                activeContractsOffset -> {
+                  activeContractsOffset.ifPresent(
+                      absolute -> offset = new LedgerOffset.Absolute(absolute));
+                  return Flowable.defer(
+                          () ->
+                              ledgerClient
+                                  .getTransactionsClient()
+                                  .getTransactions(offset, transactionFilter, true))
+                      .doOnNext(
+                          transaction ->
+                              offset = new LedgerOffset.Absolute(transaction.getOffset()))
+                      .retryWhen(
+                          errors ->
+                              errors.flatMap(
+                                  e -> {
+                                    logger.warn(
+                                        "The transaction stream of {} failed, resubscribing.",
+                                        party,
+                                        e);
+                                    return Flowable.timer(
+                                        RESUBSCRIBE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                                  }));
+                });
+    Flowable<Change> ledgerChanges =
+        Flowable.concat(
+            activeContracts.map(response -> toChange(response.getCreatedEvents(), response)),
+            transactions.map(
+                transaction -> {
+                  Change change = toChange(transaction.getEvents(), transaction);
+                  change.commandId = transaction.getCommandId();
+                  return change;
+                }));
+    // merging serializes the changes, so the store and the bots are used by one at a time
+    Flowable.merge(ledgerChanges, releases.onBackpressureLatest().map(released -> Change.EMPTY))
+        .map(this::process)
+        .flatMapCompletable(submissions -> submissions)
+        .subscribe(
+            () -> logger.info("The ledger stream of {} completed.", party),
+            e -> logger.error("The ledger stream of {} failed.", party, e));
+  }
+
+  private static Optional<String> latestOffset(
+      Optional<String> offset, GetActiveContractsResponse response) {
+    return response.getOffset().isPresent() ? response.getOffset() : offset;
+  }
+
+  private Change toChange(List<? extends Event> events, WorkflowEvent context) {
+    Change change = new Change();
+    for (Event event : events) {
+      String contractId = event.getContractId();
+      if (event instanceof CreatedEvent) {
+        CreatedEvent createdEvent = (CreatedEvent) event;
+        Function<CreatedContract, Template> transform =
+            transforms.get(createdEvent.getTemplateId());
+        change.created.put(
+            contractId,
+            transform.apply(
+                new CreatedContract(
+                    createdEvent.getTemplateId(), createdEvent.getArguments(), context)));
+        change.templateIds.put(contractId, createdEvent.getTemplateId());
+      } else if (event instanceof ArchivedEvent) {
+        if (change.created.remove(contractId) == null) {
+          change.archived.add(contractId);
+          change.templateIds.put(contractId, event.getTemplateId());
+        }
+      }
+    }
+    return change;
+  }
+
+  private Completable process(Change change) {
+    change.archived.forEach(contracts::remove);
+    change.created.forEach(contracts::add);
+    List<Completable> submissions = new ArrayList<>();
+    for (Subscriber subscriber : subscribers) {
+      Flowable<CommandsAndPendingSet> commands;
+      try {
+        commands = subscriber.process(change);
+      } catch (RuntimeException e) {
+        logger.error("A bot of {} failed.", party, e);
+        continue;
+      }
+      submissions.add(
+          commands
+              .onErrorResumeNext(
+                  (Throwable e) -> {
+                    logger.error("A bot of {} failed.", party, e);
+                    return Flowable.<CommandsAndPendingSet>empty();
+                  })
+              .flatMapCompletable(pendingSet -> submit(subscriber, pendingSet)));
+    }
+    // the pending contracts are passed again with the next change, after the transaction
+    if (change.commandId != null) {
+      release(change.commandId);
+    }
+    return Completable.merge(submissions);
+  }
+
+  private Completable submit(Subscriber subscriber, CommandsAndPendingSet commands) {
+    Set<String> pending = new HashSet<>();
+    commands.getContractIdsPendingIfSucceed().values().forEach(pending::addAll);
+    subscriber.hiddenContracts.hide(pending);
+    String commandId = commands.getSubmitCommandsRequest().getCommandId();
+    // registered before submitting, so that the transaction cannot arrive first
+    pendingReleases.put(commandId, () -> subscriber.hiddenContracts.release(pending));
+    return commandSubmitter
+        .submit(commands.getSubmitCommandsRequest())
+        .doOnError(
+            e -> {
+              logger.warn("Commands of {} failed.", party, e);
+              release(commandId);
+            })
+        .onErrorComplete();
+  }
+
+  // Releases the pending contracts of the commands, if they are still hidden.
+  private void release(String commandId) {
+    Runnable release = pendingReleases.remove(commandId);
+    if (release != null) {
+      release.run();
+      releases.onNext(true);
+    }
+  }
+
+  /** The contracts created and archived by a transaction (or the active contracts). */
+  private static final class Change {
+    private static final Change EMPTY = new Change();
+
+    private final Map<String, Template> created = new LinkedHashMap<>();
+    private final Set<String> archived = new HashSet<>();
+    private final Map<String, Identifier> templateIds = new HashMap<>();
+    // the command id of a transaction of this application, otherwise null or empty
+    private String commandId;
+  }
+
+  /** A registered bot and the contracts hidden from it. */
+  private final class Subscriber {
+    private final Set<Identifier> templateIds;
+    private final Function<LedgerDelta, Flowable<CommandsAndPendingSet>> bot;
+    private final HiddenContracts hiddenContracts = new HiddenContracts();
+
+    private Subscriber(
+        Set<Identifier> templateIds, Function<LedgerDelta, Flowable<CommandsAndPendingSet>> bot) {
+      this.templateIds = templateIds;
+      this.bot = bot;
+    }
+
+    private Flowable<CommandsAndPendingSet> process(Change change) {
+      Map<String, Template> created = new LinkedHashMap<>();
+      Set<String> archived = new HashSet<>();
+      synchronized (hiddenContracts) {
+        archived.addAll(hiddenContracts.takeHiding());
+        for (String contractId : hiddenContracts.takeReleased()) {
+          // contracts released before they were hidden from the bot are not passed at all
+          if (!archived.remove(contractId)) {
+            contracts.get(contractId).ifPresent(contract -> created.put(contractId, contract));
+          }
+        }
+        change.created.forEach(
+            (contractId, contract) -> {
+              if (templateIds.contains(change.templateIds.get(contractId))) {
+                created.put(contractId, contract);
+              }
+            });
+        for (String contractId : change.archived) {
+          if (templateIds.contains(change.templateIds.get(contractId))
+              && !hiddenContracts.archive(contractId)
+              && created.remove(contractId) == null) {
+            archived.add(contractId);
+          }
+        }
+      }
+      return created.isEmpty() && archived.isEmpty()
+          ? Flowable.empty()
+          : bot.apply(new LedgerDelta(created, archived, contracts));
+    }
+  }
+}
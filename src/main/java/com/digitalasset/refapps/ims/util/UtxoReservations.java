@@ -0,0 +1,79 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.util;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * UTXO contracts that are reserved as inputs of a transfer, so that concurrent transfers and the
+ * consolidation of UTXOs use disjoint inputs. A UTXO is reserved while a transfer on the ledger
+ * uses it, i.e. until the transfer is transmitted (which spends the UTXO) or fails. In between
+ * selecting the UTXO and the transfer appearing on the ledger it is reserved locally, until the
+ * timeout passes (e.g. the command failed). The transfers on the ledger are added and removed as
+ * they are created and archived; a UTXO is counted once per transfer using it.
+ */
+public class UtxoReservations {
+  private final Duration timeout;
+  // UTXO contract id -> end of the local reservation
+  private final Map<String, Instant> localReservations = new HashMap<>();
+  // UTXO contract id -> number of transfers on the ledger using it
+  private final Map<String, Integer> usedByTransfers = new HashMap<>();
+
+  public UtxoReservations(Duration timeout) {
+    this.timeout = timeout;
+  }
+
+  /** Adds the inputs of a transfer on the ledger, their local reservations are dropped. */
+  public synchronized void addUsedByTransfer(Collection<String> utxoCids) {
+    for (String utxoCid : utxoCids) {
+      usedByTransfers.merge(utxoCid, 1, Integer::sum);
+      localReservations.remove(utxoCid);
+    }
+  }
+
+  /** Removes the inputs of a transfer that was transmitted or failed. */
+  public synchronized void removeUsedByTransfer(Collection<String> utxoCids) {
+    for (String utxoCid : utxoCids) {
+      usedByTransfers.computeIfPresent(utxoCid, (cid, count) -> count > 1 ? count - 1 : null);
+    }
+  }
+
+  /** Reserves the UTXOs until they are used by a transfer on the ledger or the timeout passes. */
+  public synchronized void reserve(Collection<String> utxoCids) {
+    Instant end = Instant.now().plus(timeout);
+    utxoCids.forEach(utxoCid -> localReservations.put(utxoCid, end));
+  }
+
+  public synchronized void release(Collection<String> utxoCids) {
+    localReservations.keySet().removeAll(utxoCids);
+  }
+
+  public synchronized boolean isReserved(String utxoCid) {
+    if (usedByTransfers.containsKey(utxoCid)) {
+      return true;
+    }
+    Instant end = localReservations.get(utxoCid);
+    return end != null && end.isAfter(Instant.now());
+  }
+
+  /** The reserved UTXOs, local reservations that timed out are dropped. */
+  public synchronized Set<String> getReserved() {
+    Instant now = Instant.now();
+    localReservations.values().removeIf(end -> !end.isAfter(now));
+    Set<String> reserved = new HashSet<>(usedByTransfers.keySet());
+    reserved.addAll(localReservations.keySet());
+    return reserved;
+  }
+
+  public synchronized int size() {
+    return usedByTransfers.size() + localReservations.size();
+  }
+}
@@ -42,6 +42,7 @@ import transfer.address.OwnedAddress;
 import transfer.request.FailedAddressCheckTransferRequest;
 import transfer.request.FailedLimitsCheckTransferRequest;
 import transfer.request.InsufficientTransferRequest;
+import transfer.transfer.NewTransfer;
 import transfer.transfer.SignedTransfer;
 import transfer.transfer.TransmittedTransfer;
 import transfer.transfer.UTXO;
@@ -90,13 +91,13 @@ public class InventoryManagementIT {
   private DestinationAddress badAddress;
   private DefaultLedgerAdapter ledgerAdapter;
   private String changeAddress = "mvQ2E19nuUNEXkCBEv1qcpTNpGVmnC4uwM"; // target of remaining UTXO-s
-  private static final int numberOfOwnedAddresses = 14;
+  // the addresses of the key file and the first chunk of derived change addresses, which receive
+  // the change of the transfers
+  private static final int numberOfOwnedAddresses = 14 + cliOptions.getChangeChunkSize();
   private long transferAmount = 1_000_000L;
-  private long transactionFee = 20_000L;
   private long initialMiningReward = 5_000_000_000L; // of the first 149 regtest blocks
   private long originalOwnedBalance;
   // TODO(demian) extract change address (from RawTX or put it into TransactionDetails),
-  // TODO(demian) extract transactionFee
 
   @Before
   public void setUp() throws Exception {
@@ -168,6 +169,14 @@ public class InventoryManagementIT {
         .collect(Collectors.toMap(x -> x.address.unpack, x -> x.balance.unpack));
   }
 
+  // the fee estimated for the transfer
+  private long getTransactionFee() throws Exception {
+    ContractWithId<NewTransfer.ContractId> newTransferWithId =
+        ledgerAdapter.getMatchedContract(
+            TRADER_PARTY, NewTransfer.TEMPLATE_ID, NewTransfer.ContractId::new);
+    return NewTransfer.fromValue(newTransferWithId.record).fee.unpack;
+  }
+
   private long totalBalance(Map<String, Long> balances) {
     return balances.values().stream().reduce(0L, Long::sum);
   }
@@ -201,6 +210,7 @@ public class InventoryManagementIT {
     ledgerAdapter.exerciseChoice(
         TRADER_PARTY,
         traderRoleCid.exerciseRequestTransfer(new Satoshi(transferAmount), externalAddress));
+    long transactionFee = getTransactionFee();
     SignedTransfer.ContractId signedTransferCid =
         ledgerAdapter.getCreatedContractId(
             TRADER_PARTY, SignedTransfer.TEMPLATE_ID, SignedTransfer.ContractId::new);
@@ -235,6 +245,7 @@ public class InventoryManagementIT {
         traderRoleCid.exerciseRequestTransfer(
             new Satoshi(transferAmount),
             goodAddress.address)); // target address is an owned address
+    long transactionFee = getTransactionFee();
     SignedTransfer.ContractId signedTransferCid =
         ledgerAdapter.getCreatedContractId(
             TRADER_PARTY, SignedTransfer.TEMPLATE_ID, SignedTransfer.ContractId::new);
@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.bitcoin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import org.junit.Test;
+
+public class CoinSelectorTest {
+  // one satoshi per virtual byte, so that fees equal sizes: a pay-to-pubkey-hash input costs 148,
+  // an output 34 and the transaction overhead 10
+  private final CoinSelector coinSelector = new CoinSelector(new FeeEstimator(1_000));
+
+  @Test
+  public void exactMatchLeavesOutTheChange() {
+    Map<String, Long> coins =
+        ImmutableMap.of(
+            "a", 100_148L,
+            "b", 50_148L,
+            "c", 30_148L,
+            "d", 5_000_000L);
+
+    // the inputs pay for themselves, the overhead and the output are 44
+    Optional<CoinSelector.Selection> selection =
+        coinSelector.select(coins, Collections.emptySet(), 150_000 - 44);
+
+    assertEquals(ImmutableSet.of("a", "b"), new HashSet<>(selection.get().getCoins()));
+    assertEquals(2 * 148 + 44, selection.get().getFee());
+  }
+
+  @Test
+  public void largestCoinsFirstWithoutAnExactMatch() {
+    Map<String, Long> coins =
+        ImmutableMap.of(
+            "a", 1_000_000L,
+            "b", 600_000L,
+            "c", 300_000L);
+
+    Optional<CoinSelector.Selection> selection =
+        coinSelector.select(coins, Collections.emptySet(), 1_200_000);
+
+    assertEquals(ImmutableSet.of("a", "b"), new HashSet<>(selection.get().getCoins()));
+    assertEquals(10 + 2 * 148 + 2 * 34, selection.get().getFee());
+  }
+
+  @Test
+  public void dustChangeGoesToTheFee() {
+    Optional<CoinSelector.Selection> selection =
+        coinSelector.select(ImmutableMap.of("a", 100_000L), Collections.emptySet(), 99_500);
+
+    assertEquals(Collections.singletonList("a"), selection.get().getCoins());
+    assertEquals(500, selection.get().getFee());
+  }
+
+  @Test
+  public void insufficientCoinsSelectNothing() {
+    Map<String, Long> coins = ImmutableMap.of("a", 100_000L, "b", 50_000L);
+
+    assertFalse(coinSelector.select(coins, Collections.emptySet(), 150_000).isPresent());
+  }
+
+  @Test
+  public void exactMatchOfManyCoins() {
+    int coinCount = 50_000;
+    Map<String, Long> coins = new HashMap<>();
+    for (int i = 0; i < coinCount; i++) {
+      coins.put("coin" + i, 1_148L);
+    }
+
+    Optional<CoinSelector.Selection> selection =
+        coinSelector.select(coins, Collections.emptySet(), coinCount * 1_000L - 44);
+
+    assertEquals(coinCount, selection.get().getCoins().size());
+    assertEquals(coinCount * 148L + 44, selection.get().getFee());
+  }
+}
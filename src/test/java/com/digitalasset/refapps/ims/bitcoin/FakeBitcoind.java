@@ -0,0 +1,945 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.bitcoin;
+
+import com.digitalasset.refapps.ims.util.Utility;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import fr.acinq.bitcoin.BinaryData;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-process stand-in for the JSON-RPC interface of bitcoind, for load tests of BitcoinClient and
+ * BTCService. It keeps a deterministic chain in memory and implements the calls the client uses,
+ * including batch requests, with a configurable latency. Wallets of arbitrary size can be created
+ * synthetically. Signatures and scripts are not verified, only inputs and amounts.
+ *
+ * <p>Run main to use it in place of bitcoind, its URL can be passed to the application as -burl.
+ */
+public class FakeBitcoind implements Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(FakeBitcoind.class);
+
+  public static final int DEFAULT_PORT = 19091;
+
+  private static final long SATOSHI_PER_BTC = 100_000_000L;
+  private static final long COINBASE_VALUE = 50 * SATOSHI_PER_BTC;
+  // coinbase outputs can be spent at this depth
+  private static final long COINBASE_MATURITY_DEPTH = 101;
+  private static final long GENESIS_TIME = 1_500_000_000L;
+  private static final long BLOCK_INTERVAL_SECONDS = 600;
+  private static final int OUTPUTS_PER_FUNDING_TX = 500;
+  private static final int TXS_PER_BLOCK = 2_000;
+  private static final long COINBASE_VOUT = 0xFFFFFFFFL;
+  // the estimate of estimatesmartfee, in satoshi per 1000 virtual bytes
+  private static final long FEE_RATE = 5_000;
+
+  private static class RpcError extends RuntimeException {
+    private final long code;
+
+    RpcError(long code, String message) {
+      super(message);
+      this.code = code;
+    }
+  }
+
+  private static class TxInput {
+    private final String txid;
+    private final long vout;
+    private final byte[] script;
+    private final long sequence;
+
+    TxInput(String txid, long vout, byte[] script, long sequence) {
+      this.txid = txid;
+      this.vout = vout;
+      this.script = script;
+      this.sequence = sequence;
+    }
+
+    boolean isCoinbase() {
+      return vout == COINBASE_VOUT;
+    }
+  }
+
+  private static class Output {
+    private final Tx tx;
+    private final int vout;
+    private final long value;
+    private final byte[] script;
+    private final String address;
+
+    Output(Tx tx, int vout, long value, byte[] script) {
+      this.tx = tx;
+      this.vout = vout;
+      this.value = value;
+      this.script = script;
+      this.address = toAddress(script);
+    }
+  }
+
+  private static class Tx {
+    private final String txid;
+    private final String hex;
+    private final List<TxInput> inputs;
+    private final List<Output> outputs = new ArrayList<>();
+    private Block block;
+
+    Tx(List<TxInput> inputs, List<Long> values, List<byte[]> scripts) {
+      this.inputs = inputs;
+      byte[] serialized = serialize(inputs, values, scripts);
+      this.hex = toHex(serialized);
+      this.txid = toHex(reverse(sha256(sha256(serialized))));
+      for (int vout = 0; vout < values.size(); vout++) {
+        outputs.add(new Output(this, vout, values.get(vout), scripts.get(vout)));
+      }
+    }
+
+    boolean isCoinbase() {
+      return inputs.size() == 1 && inputs.get(0).isCoinbase();
+    }
+  }
+
+  private static class Block {
+    private final String hash;
+    private final long height;
+    private final long time;
+    private final List<Tx> txs = new ArrayList<>();
+
+    Block(String hash, long height) {
+      this.hash = hash;
+      this.height = height;
+      this.time = GENESIS_TIME + height * BLOCK_INTERVAL_SECONDS;
+    }
+  }
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final Random random;
+
+  private final List<Block> blocks = new ArrayList<>();
+  private final Map<String, Block> blocksByHash = new HashMap<>();
+  private final Map<String, Tx> transactions = new HashMap<>();
+  private final List<Tx> mempool = new ArrayList<>();
+  private final Map<UtxoId, Output> unspent = new HashMap<>();
+  private final Map<String, Set<UtxoId>> unspentByAddress = new HashMap<>();
+  private final Set<String> walletAddresses = new HashSet<>();
+
+  private volatile long latencyMicros;
+  private volatile long latencyMicrosPerCall;
+
+  /**
+   * @param threads number of requests served concurrently, like -rpcthreads of bitcoind
+   * @param seed seed of the synthetic block hashes, wallets and amounts
+   */
+  public FakeBitcoind(int port, int threads, long seed) throws IOException {
+    this.random = new Random(seed);
+    mineBlock(Collections.emptyList());
+    this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+    this.executor = Executors.newFixedThreadPool(threads);
+    server.setExecutor(executor);
+    server.createContext("/", this::handle);
+  }
+
+  public void start() {
+    server.start();
+    logger.info("Fake bitcoind listening at {}.", getUrl());
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  public String getUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  /** Delays every HTTP request by latencyMicros, plus latencyMicrosPerCall per call it contains. */
+  public void setLatency(long latencyMicros, long latencyMicrosPerCall) {
+    this.latencyMicros = latencyMicros;
+    this.latencyMicrosPerCall = latencyMicrosPerCall;
+  }
+
+  public synchronized void importAddresses(Collection<String> addresses) {
+    walletAddresses.addAll(addresses);
+  }
+
+  /** Creates addresses in the wallet and funds each of them with utxosPerAddress outputs. */
+  public List<String> createSyntheticWallet(int addressCount, int utxosPerAddress) {
+    List<String> addresses = new ArrayList<>(addressCount);
+    for (int i = 0; i < addressCount; i++) {
+      addresses.add(newAddress());
+    }
+    importAddresses(addresses);
+    fund(addresses, utxosPerAddress);
+    return addresses;
+  }
+
+  /** Creates a pay-to-pubkey-hash address that is not in the wallet. */
+  public synchronized String newAddress() {
+    byte[] pubKeyHash = new byte[20];
+    random.nextBytes(pubKeyHash);
+    return AddressType.P2PKH.encode(Network.REGTEST, BinaryData.apply(toHex(pubKeyHash)));
+  }
+
+  /**
+   * Sends utxosPerAddress outputs of random value to each address from outside the wallet, mines
+   * them and confirms them with one more block.
+   */
+  public synchronized void fund(Collection<String> addresses, int utxosPerAddress) {
+    List<Long> values = new ArrayList<>();
+    List<byte[]> scripts = new ArrayList<>();
+    List<Tx> block = new ArrayList<>();
+    for (int i = 0; i < utxosPerAddress; i++) {
+      for (String address : addresses) {
+        values.add(10_000L + (long) (random.nextDouble() * SATOSHI_PER_BTC));
+        scripts.add(toScript(address));
+        if (values.size() == OUTPUTS_PER_FUNDING_TX) {
+          block.add(fundingTx(values, scripts));
+          values = new ArrayList<>();
+          scripts = new ArrayList<>();
+          if (block.size() == TXS_PER_BLOCK) {
+            mineBlock(block);
+            block = new ArrayList<>();
+          }
+        }
+      }
+    }
+    if (!values.isEmpty()) {
+      block.add(fundingTx(values, scripts));
+    }
+    mineBlock(block);
+    mineBlock(Collections.emptyList());
+  }
+
+  // The single input spends an output of a transaction outside the chain.
+  private Tx fundingTx(List<Long> values, List<byte[]> scripts) {
+    byte[] prevTxid = new byte[32];
+    random.nextBytes(prevTxid);
+    TxInput input = new TxInput(toHex(prevTxid), 0, new byte[0], 0xFFFFFFFFL);
+    return new Tx(Collections.singletonList(input), values, scripts);
+  }
+
+  /**
+   * Sends the unspent output to the address, less a fee of 1000 satoshi, with a transaction in the
+   * mempool. The next generated block mines it.
+   */
+  public synchronized String spend(UtxoId utxoId, String address) {
+    Output output = unspent.get(utxoId);
+    if (output == null) {
+      throw new IllegalArgumentException("Not an unspent output: " + utxoId);
+    }
+    TxInput input =
+        new TxInput(utxoId.getTxHash(), utxoId.getOutputIdx(), new byte[0], 0xFFFFFFFFL);
+    Tx tx =
+        new Tx(
+            Collections.singletonList(input),
+            Collections.singletonList(output.value - 1000),
+            Collections.singletonList(toScript(address)));
+    addToUtxoSet(tx);
+    mempool.add(tx);
+    return tx.txid;
+  }
+
+  public synchronized List<String> generateToAddress(int blockCount, String address) {
+    List<String> hashes = new ArrayList<>(blockCount);
+    for (int i = 0; i < blockCount; i++) {
+      long height = blocks.size();
+      byte[] coinbaseScript = new byte[8];
+      for (int b = 0; b < 8; b++) {
+        coinbaseScript[b] = (byte) (height >>> (8 * b));
+      }
+      TxInput input = new TxInput(toHex(new byte[32]), COINBASE_VOUT, coinbaseScript, 0xFFFFFFFFL);
+      Tx coinbase =
+          new Tx(
+              Collections.singletonList(input),
+              Collections.singletonList(COINBASE_VALUE),
+              Collections.singletonList(toScript(address)));
+      List<Tx> txs = new ArrayList<>();
+      txs.add(coinbase);
+      txs.addAll(mempool);
+      mempool.clear();
+      hashes.add(mineBlock(txs).hash);
+    }
+    return hashes;
+  }
+
+  private Block mineBlock(List<Tx> txs) {
+    byte[] hash = new byte[32];
+    random.nextBytes(hash);
+    Block block = new Block(toHex(hash), blocks.size());
+    blocks.add(block);
+    blocksByHash.put(block.hash, block);
+    for (Tx tx : txs) {
+      block.txs.add(tx);
+      if (tx.block == null && !transactions.containsKey(tx.txid)) {
+        addToUtxoSet(tx);
+      }
+      tx.block = block;
+    }
+    return block;
+  }
+
+  private void addToUtxoSet(Tx tx) {
+    transactions.put(tx.txid, tx);
+    for (TxInput input : tx.inputs) {
+      UtxoId utxoId = new UtxoId(input.txid, input.vout);
+      Output spent = unspent.remove(utxoId);
+      if (spent != null && spent.address != null) {
+        unspentByAddress.get(spent.address).remove(utxoId);
+      }
+    }
+    for (Output output : tx.outputs) {
+      UtxoId utxoId = new UtxoId(tx.txid, output.vout);
+      unspent.put(utxoId, output);
+      if (output.address != null) {
+        unspentByAddress.computeIfAbsent(output.address, a -> new LinkedHashSet<>()).add(utxoId);
+      }
+    }
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    Object request;
+    try (Reader reader =
+        new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+      request = new JSONParser().parse(reader);
+    } catch (ParseException e) {
+      send(exchange, 500, error(null, -32700, "Parse error"));
+      return;
+    }
+    int calls = request instanceof JSONArray ? ((JSONArray) request).size() : 1;
+    try {
+      TimeUnit.MICROSECONDS.sleep(latencyMicros + calls * latencyMicrosPerCall);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    if (request instanceof JSONArray) {
+      JSONArray responses = new JSONArray();
+      for (Object call : (JSONArray) request) {
+        responses.add(call((JSONObject) call));
+      }
+      send(exchange, 200, responses);
+    } else {
+      JSONObject response = call((JSONObject) request);
+      send(exchange, response.get("error") == null ? 200 : 500, response);
+    }
+  }
+
+  private static void send(HttpExchange exchange, int status, Object response)
+      throws IOException {
+    byte[] body = JSONValue.toJSONString(response).getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private JSONObject call(JSONObject request) {
+    Object id = request.get("id");
+    JSONArray params = (JSONArray) request.get("params");
+    if (params == null) {
+      params = new JSONArray();
+    }
+    try {
+      Object result;
+      synchronized (this) {
+        result = dispatch((String) request.get("method"), params);
+      }
+      JSONObject response = new JSONObject();
+      response.put("result", result);
+      response.put("error", null);
+      response.put("id", id);
+      return response;
+    } catch (RpcError e) {
+      return error(id, e.code, e.getMessage());
+    } catch (RuntimeException e) {
+      return error(id, -1, String.valueOf(e));
+    }
+  }
+
+  private static JSONObject error(Object id, long code, String message) {
+    JSONObject error = new JSONObject();
+    error.put("code", code);
+    error.put("message", message);
+    JSONObject response = new JSONObject();
+    response.put("result", null);
+    response.put("error", error);
+    response.put("id", id);
+    return response;
+  }
+
+  private Object dispatch(String method, JSONArray params) {
+    switch (method) {
+      case "getblockcount":
+        return tipHeight();
+      case "getblockhash":
+        return getBlock((Long) params.get(0)).hash;
+      case "getblockheader":
+        return getBlockHeader((String) params.get(0));
+      case "importaddress":
+        walletAddresses.add((String) params.get(0));
+        return null;
+      case "getreceivedbyaddress":
+        return getReceivedByAddress((String) params.get(0), param(params, 1, 1L));
+      case "generatetoaddress":
+        JSONArray hashes = new JSONArray();
+        hashes.addAll(generateToAddress(((Long) params.get(0)).intValue(), (String) params.get(1)));
+        return hashes;
+      case "listunspent":
+        return listUnspent(
+            param(params, 0, 1L), param(params, 1, 9_999_999L), param(params, 2, null));
+      case "gettransaction":
+        return getTransaction((String) params.get(0));
+      case "decoderawtransaction":
+        return decodeRawTransaction((String) params.get(0));
+      case "gettxout":
+        return getTxOut((String) params.get(0), (Long) params.get(1), param(params, 2, true));
+      case "listsinceblock":
+        return listSinceBlock(param(params, 0, null));
+      case "sendrawtransaction":
+        return sendRawTransaction((String) params.get(0));
+      case "estimatesmartfee":
+        return estimateSmartFee((Long) params.get(0));
+      default:
+        throw new RpcError(-32601, "Method not found");
+    }
+  }
+
+  private static <T> T param(JSONArray params, int index, T defaultValue) {
+    return params.size() > index && params.get(index) != null
+        ? (T) params.get(index)
+        : defaultValue;
+  }
+
+  private long tipHeight() {
+    return blocks.size() - 1;
+  }
+
+  private Block getBlock(long height) {
+    if (height < 0 || height > tipHeight()) {
+      throw new RpcError(-8, "Block height out of range");
+    }
+    return blocks.get((int) height);
+  }
+
+  private long confirmations(Tx tx) {
+    return tx.block == null ? 0 : tipHeight() - tx.block.height + 1;
+  }
+
+  private boolean isMature(Output output) {
+    return !output.tx.isCoinbase() || confirmations(output.tx) >= COINBASE_MATURITY_DEPTH;
+  }
+
+  private boolean isWalletOutput(Output output) {
+    return output.address != null && walletAddresses.contains(output.address);
+  }
+
+  private Optional<Output> getSpentOutput(TxInput input) {
+    Tx tx = transactions.get(input.txid);
+    return tx == null || input.vout >= tx.outputs.size()
+        ? Optional.empty()
+        : Optional.of(tx.outputs.get((int) input.vout));
+  }
+
+  private boolean spendsWalletOutputs(Tx tx) {
+    return tx.inputs.stream()
+        .map(this::getSpentOutput)
+        .anyMatch(output -> output.isPresent() && isWalletOutput(output.get()));
+  }
+
+  private JSONObject getBlockHeader(String blockHash) {
+    Block block = blocksByHash.get(blockHash);
+    if (block == null) {
+      throw new RpcError(-5, "Block not found");
+    }
+    JSONObject header = new JSONObject();
+    header.put("hash", block.hash);
+    header.put("confirmations", tipHeight() - block.height + 1);
+    header.put("height", block.height);
+    header.put("time", block.time);
+    header.put("nTx", (long) block.txs.size());
+    if (block.height > 0) {
+      header.put("previousblockhash", blocks.get((int) block.height - 1).hash);
+    }
+    return header;
+  }
+
+  private static JSONObject estimateSmartFee(long confTarget) {
+    JSONObject result = new JSONObject();
+    result.put("feerate", toBtc(FEE_RATE));
+    result.put("blocks", confTarget);
+    return result;
+  }
+
+  private BigDecimal getReceivedByAddress(String address, long minConfirmation) {
+    long received = 0;
+    for (Tx tx : transactions.values()) {
+      if (confirmations(tx) < minConfirmation) {
+        continue;
+      }
+      for (Output output : tx.outputs) {
+        if (address.equals(output.address)) {
+          received += output.value;
+        }
+      }
+    }
+    return toBtc(received);
+  }
+
+  // Like bitcoind, no or an empty address list selects all addresses of the wallet.
+  private JSONArray listUnspent(long minConfirmation, long maxConfirmation, JSONArray addresses) {
+    Collection<?> selected =
+        addresses == null || addresses.isEmpty() ? walletAddresses : addresses;
+    JSONArray result = new JSONArray();
+    for (Object address : selected) {
+      if (!walletAddresses.contains(address)) {
+        continue;
+      }
+      for (UtxoId utxoId : unspentByAddress.getOrDefault(address, Collections.emptySet())) {
+        Output output = unspent.get(utxoId);
+        long confirmations = confirmations(output.tx);
+        if (confirmations < minConfirmation
+            || confirmations > maxConfirmation
+            || !isMature(output)) {
+          continue;
+        }
+        JSONObject entry = new JSONObject();
+        entry.put("txid", output.tx.txid);
+        entry.put("vout", (long) output.vout);
+        entry.put("address", output.address);
+        entry.put("scriptPubKey", toHex(output.script));
+        entry.put("amount", toBtc(output.value));
+        entry.put("confirmations", confirmations);
+        entry.put("spendable", false);
+        entry.put("solvable", false);
+        entry.put("safe", true);
+        result.add(entry);
+      }
+    }
+    return result;
+  }
+
+  private JSONObject getTransaction(String txid) {
+    Tx tx = transactions.get(txid);
+    boolean sent = tx != null && spendsWalletOutputs(tx);
+    if (tx == null || (!sent && tx.outputs.stream().noneMatch(this::isWalletOutput))) {
+      throw new RpcError(-5, "Invalid or non-wallet transaction id");
+    }
+    JSONObject result = new JSONObject();
+    long received = 0;
+    for (Output output : tx.outputs) {
+      if (isWalletOutput(output)) {
+        received += output.value;
+      }
+    }
+    result.put("amount", toBtc(received));
+    if (sent) {
+      result.put("fee", toBtc(-fee(tx)));
+    }
+    result.put("confirmations", confirmations(tx));
+    if (tx.block != null) {
+      result.put("blockhash", tx.block.hash);
+      result.put("blockheight", tx.block.height);
+      result.put("blocktime", tx.block.time);
+    }
+    result.put("txid", tx.txid);
+    result.put("hex", tx.hex);
+    return result;
+  }
+
+  private long fee(Tx tx) {
+    long in = 0;
+    for (TxInput input : tx.inputs) {
+      in += getSpentOutput(input).map(output -> output.value).orElse(0L);
+    }
+    long out = 0;
+    for (Output output : tx.outputs) {
+      out += output.value;
+    }
+    return in - out;
+  }
+
+  private JSONObject decodeRawTransaction(String hex) {
+    Tx tx = parse(hex);
+    JSONObject result = new JSONObject();
+    result.put("txid", tx.txid);
+    JSONArray vin = new JSONArray();
+    for (TxInput input : tx.inputs) {
+      JSONObject jsonInput = new JSONObject();
+      if (input.isCoinbase()) {
+        jsonInput.put("coinbase", toHex(input.script));
+      } else {
+        jsonInput.put("txid", input.txid);
+        jsonInput.put("vout", input.vout);
+      }
+      jsonInput.put("sequence", input.sequence);
+      vin.add(jsonInput);
+    }
+    result.put("vin", vin);
+    JSONArray vout = new JSONArray();
+    for (Output output : tx.outputs) {
+      JSONObject jsonOutput = new JSONObject();
+      jsonOutput.put("value", toBtc(output.value));
+      jsonOutput.put("n", (long) output.vout);
+      jsonOutput.put("scriptPubKey", toJsonScript(output));
+      vout.add(jsonOutput);
+    }
+    result.put("vout", vout);
+    return result;
+  }
+
+  private JSONObject getTxOut(String txid, long vout, boolean includeMempool) {
+    Output output = unspent.get(new UtxoId(txid, vout));
+    if (output == null || (!includeMempool && output.tx.block == null)) {
+      return null;
+    }
+    JSONObject result = new JSONObject();
+    result.put("bestblock", blocks.get((int) tipHeight()).hash);
+    result.put("confirmations", confirmations(output.tx));
+    result.put("value", toBtc(output.value));
+    result.put("scriptPubKey", toJsonScript(output));
+    result.put("coinbase", output.tx.isCoinbase());
+    return result;
+  }
+
+  private static JSONObject toJsonScript(Output output) {
+    JSONObject scriptPubKey = new JSONObject();
+    scriptPubKey.put("hex", toHex(output.script));
+    if (output.address != null) {
+      scriptPubKey.put(
+          "type",
+          AddressType.ofScript(toHex(output.script)) == AddressType.P2WPKH
+              ? "witness_v0_keyhash"
+              : "pubkeyhash");
+      JSONArray addresses = new JSONArray();
+      addresses.add(output.address);
+      scriptPubKey.put("addresses", addresses);
+    } else {
+      scriptPubKey.put("type", "nonstandard");
+    }
+    return scriptPubKey;
+  }
+
+  // No reorgs happen here, so nothing is ever reported as removed.
+  private JSONObject listSinceBlock(String blockHash) {
+    long sinceHeight = -1;
+    if (blockHash != null) {
+      Block since = blocksByHash.get(blockHash);
+      if (since == null) {
+        throw new RpcError(-5, "Block not found");
+      }
+      sinceHeight = since.height;
+    }
+    List<Tx> txs = new ArrayList<>();
+    for (long height = sinceHeight + 1; height <= tipHeight(); height++) {
+      txs.addAll(blocks.get((int) height).txs);
+    }
+    txs.addAll(mempool);
+    JSONArray entries = new JSONArray();
+    for (Tx tx : txs) {
+      boolean sent = spendsWalletOutputs(tx);
+      for (Output output : tx.outputs) {
+        if (isWalletOutput(output)) {
+          String category =
+              !tx.isCoinbase() ? "receive" : isMature(output) ? "generate" : "immature";
+          entries.add(toSinceBlockEntry(tx, output, category, toBtc(output.value)));
+        }
+        if (sent) {
+          JSONObject entry = toSinceBlockEntry(tx, output, "send", toBtc(-output.value));
+          entry.put("fee", toBtc(-fee(tx)));
+          entries.add(entry);
+        }
+      }
+    }
+    JSONObject result = new JSONObject();
+    result.put("transactions", entries);
+    result.put("removed", new JSONArray());
+    result.put("lastblock", blocks.get((int) tipHeight()).hash);
+    return result;
+  }
+
+  private JSONObject toSinceBlockEntry(Tx tx, Output output, String category, BigDecimal amount) {
+    JSONObject entry = new JSONObject();
+    entry.put("address", output.address);
+    entry.put("category", category);
+    entry.put("amount", amount);
+    entry.put("vout", (long) output.vout);
+    entry.put("confirmations", confirmations(tx));
+    entry.put("txid", tx.txid);
+    if (tx.block != null) {
+      entry.put("blockhash", tx.block.hash);
+      entry.put("blockheight", tx.block.height);
+    }
+    return entry;
+  }
+
+  private String sendRawTransaction(String hex) {
+    Tx tx = parse(hex);
+    Tx known = transactions.get(tx.txid);
+    if (known != null) {
+      if (known.block != null) {
+        throw new RpcError(-27, "Transaction already in block chain");
+      }
+      return tx.txid;
+    }
+    long in = 0;
+    for (TxInput input : tx.inputs) {
+      Output output = unspent.get(new UtxoId(input.txid, input.vout));
+      if (output == null) {
+        throw new RpcError(-25, "Missing inputs");
+      }
+      if (!isMature(output)) {
+        throw new RpcError(-26, "bad-txns-premature-spend-of-coinbase");
+      }
+      in += output.value;
+    }
+    long out = tx.outputs.stream().mapToLong(output -> output.value).sum();
+    if (out > in) {
+      throw new RpcError(-26, "bad-txns-in-belowout");
+    }
+    addToUtxoSet(tx);
+    mempool.add(tx);
+    return tx.txid;
+  }
+
+  private static BigDecimal toBtc(long satoshi) {
+    return BigDecimal.valueOf(satoshi, 8);
+  }
+
+  private static byte[] toScript(String address) {
+    return fromHex(AddressType.toScript(address).toString());
+  }
+
+  // Only pay-to-pubkey-hash and pay-to-witness-pubkey-hash outputs have an address here.
+  private static String toAddress(byte[] script) {
+    if (script.length == 22 && script[0] == 0x00 && script[1] == 0x14) {
+      return AddressType.P2WPKH.encode(
+          Network.REGTEST, BinaryData.apply(toHex(Arrays.copyOfRange(script, 2, 22))));
+    }
+    if (script.length != 25
+        || script[0] != 0x76
+        || script[1] != (byte) 0xa9
+        || script[2] != 0x14
+        || script[23] != (byte) 0x88
+        || script[24] != (byte) 0xac) {
+      return null;
+    }
+    return AddressType.P2PKH.encode(
+        Network.REGTEST, BinaryData.apply(toHex(Arrays.copyOfRange(script, 3, 23))));
+  }
+
+  private static byte[] serialize(List<TxInput> inputs, List<Long> values, List<byte[]> scripts) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeLong(out, 1, 4);
+    writeVarInt(out, inputs.size());
+    for (TxInput input : inputs) {
+      byte[] prevTxid = reverse(fromHex(input.txid));
+      out.write(prevTxid, 0, prevTxid.length);
+      writeLong(out, input.vout, 4);
+      writeVarInt(out, input.script.length);
+      out.write(input.script, 0, input.script.length);
+      writeLong(out, input.sequence, 4);
+    }
+    writeVarInt(out, values.size());
+    for (int i = 0; i < values.size(); i++) {
+      writeLong(out, values.get(i), 8);
+      writeVarInt(out, scripts.get(i).length);
+      out.write(scripts.get(i), 0, scripts.get(i).length);
+    }
+    writeLong(out, 0, 4);
+    return out.toByteArray();
+  }
+
+  // Parses a raw transaction, skipping the witnesses of segwit transactions.
+  private static Tx parse(String hex) {
+    try {
+      byte[] bytes = fromHex(hex);
+      int[] pos = {4};
+      boolean segwit = bytes[4] == 0 && bytes[5] == 1;
+      if (segwit) {
+        pos[0] += 2;
+      }
+      List<TxInput> inputs = new ArrayList<>();
+      long inputCount = readVarInt(bytes, pos);
+      for (long i = 0; i < inputCount; i++) {
+        String txid = toHex(reverse(Arrays.copyOfRange(bytes, pos[0], pos[0] + 32)));
+        pos[0] += 32;
+        long vout = readLong(bytes, pos, 4);
+        byte[] script = readBytes(bytes, pos, (int) readVarInt(bytes, pos));
+        long sequence = readLong(bytes, pos, 4);
+        inputs.add(new TxInput(txid, vout, script, sequence));
+      }
+      List<Long> values = new ArrayList<>();
+      List<byte[]> scripts = new ArrayList<>();
+      long outputCount = readVarInt(bytes, pos);
+      for (long i = 0; i < outputCount; i++) {
+        values.add(readLong(bytes, pos, 8));
+        scripts.add(readBytes(bytes, pos, (int) readVarInt(bytes, pos)));
+      }
+      return new Tx(inputs, values, scripts);
+    } catch (RuntimeException e) {
+      throw new RpcError(-22, "TX decode failed");
+    }
+  }
+
+  private static void writeLong(ByteArrayOutputStream out, long value, int length) {
+    for (int i = 0; i < length; i++) {
+      out.write((int) (value >>> (8 * i)));
+    }
+  }
+
+  private static void writeVarInt(ByteArrayOutputStream out, long value) {
+    if (value < 0xFD) {
+      out.write((int) value);
+    } else if (value <= 0xFFFF) {
+      out.write(0xFD);
+      writeLong(out, value, 2);
+    } else {
+      out.write(0xFE);
+      writeLong(out, value, 4);
+    }
+  }
+
+  private static long readLong(byte[] bytes, int[] pos, int length) {
+    long value = 0;
+    for (int i = 0; i < length; i++) {
+      value |= (bytes[pos[0] + i] & 0xFFL) << (8 * i);
+    }
+    pos[0] += length;
+    return value;
+  }
+
+  private static long readVarInt(byte[] bytes, int[] pos) {
+    int first = bytes[pos[0]++] & 0xFF;
+    if (first < 0xFD) {
+      return first;
+    }
+    return readLong(bytes, pos, first == 0xFD ? 2 : first == 0xFE ? 4 : 8);
+  }
+
+  private static byte[] readBytes(byte[] bytes, int[] pos, int length) {
+    if (pos[0] + length > bytes.length) {
+      throw new IllegalArgumentException("Truncated transaction");
+    }
+    byte[] result = Arrays.copyOfRange(bytes, pos[0], pos[0] + length);
+    pos[0] += length;
+    return result;
+  }
+
+  private static byte[] sha256(byte[] data) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(data);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static byte[] reverse(byte[] bytes) {
+    byte[] reversed = new byte[bytes.length];
+    for (int i = 0; i < bytes.length; i++) {
+      reversed[i] = bytes[bytes.length - 1 - i];
+    }
+    return reversed;
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >>> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+
+  private static byte[] fromHex(String hex) {
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] =
+          (byte)
+              ((Character.digit(hex.charAt(2 * i), 16) << 4)
+                  | Character.digit(hex.charAt(2 * i + 1), 16));
+    }
+    return bytes;
+  }
+
+  private static class Options {
+    @Option(name = "-port", usage = "RPC port", metaVar = "PORT")
+    private int port = DEFAULT_PORT;
+
+    @Option(name = "-threads", usage = "Number of requests served concurrently")
+    private int threads = 4;
+
+    @Option(name = "-keyfile", usage = "Funds the addresses of the private keys in the file")
+    private String keyFile;
+
+    @Option(name = "-addresses", usage = "Number of synthetic wallet addresses")
+    private int addresses = 0;
+
+    @Option(name = "-utxos", usage = "Number of unspent outputs per wallet address")
+    private int utxosPerAddress = 10;
+
+    @Option(name = "-latency", usage = "Latency of a request in microseconds")
+    private long latencyMicros = 0;
+
+    @Option(name = "-calllatency", usage = "Additional latency per call in microseconds")
+    private long latencyMicrosPerCall = 0;
+
+    @Option(name = "-seed", usage = "Seed of the synthetic data")
+    private long seed = 0;
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    Options options = new Options();
+    CmdLineParser parser = new CmdLineParser(options);
+    try {
+      parser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      parser.printUsage(System.err);
+      System.exit(1);
+    }
+
+    FakeBitcoind bitcoind = new FakeBitcoind(options.port, options.threads, options.seed);
+    bitcoind.setLatency(options.latencyMicros, options.latencyMicrosPerCall);
+    if (options.keyFile != null) {
+      List<String> addresses = new ArrayList<>();
+      BTCUtility.loadPrivateKeysFromFile(options.keyFile)
+          .keySet()
+          .forEach(address -> addresses.add(Utility.unpack(address)));
+      bitcoind.importAddresses(addresses);
+      bitcoind.fund(addresses, options.utxosPerAddress);
+    }
+    if (options.addresses > 0) {
+      bitcoind.createSyntheticWallet(options.addresses, options.utxosPerAddress);
+    }
+    bitcoind.start();
+    Thread.currentThread().join();
+  }
+}
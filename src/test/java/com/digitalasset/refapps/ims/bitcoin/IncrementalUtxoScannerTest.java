@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.bitcoin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IncrementalUtxoScannerTest {
+  private static final int MIN_CONFIRMATION = 1;
+
+  private FakeBitcoind bitcoind;
+  private BitcoinClient bitcoinClient;
+  private IncrementalUtxoScanner scanner;
+  private List<String> addresses;
+
+  @Before
+  public void setUp() throws IOException {
+    bitcoind = new FakeBitcoind(0, 2, 42);
+    bitcoind.start();
+    bitcoinClient = new BitcoinClient(bitcoind.getUrl(), "user", "password");
+    scanner =
+        new IncrementalUtxoScanner(
+            bitcoinClient,
+            (selected, consumer) -> bitcoinClient.forEachUTXO(MIN_CONFIRMATION, selected, consumer),
+            MIN_CONFIRMATION,
+            10);
+    addresses = bitcoind.createSyntheticWallet(3, 4);
+  }
+
+  @After
+  public void tearDown() {
+    bitcoind.close();
+  }
+
+  @Test
+  public void firstSyncIsAFullScan() {
+    List<TxRef> created = new ArrayList<>();
+    UtxoDelta delta = scanner.sync(addresses, created::add);
+
+    assertTrue(delta.isFullScan());
+    assertEquals(12, created.size());
+    for (String address : addresses) {
+      long balance =
+          created.stream()
+              .filter(txRef -> txRef.getAddress().equals(address))
+              .mapToLong(TxRef::getValue)
+              .sum();
+      assertEquals(balance, delta.getBalancesByAddress().get(address).getBalance());
+      assertEquals(4, delta.getBalancesByAddress().get(address).getNumTx());
+    }
+  }
+
+  @Test
+  public void incrementalSyncPassesOnlyNewOutputs() {
+    scanner.sync(addresses, txRef -> {});
+    String address = addresses.get(0);
+    bitcoind.fund(Collections.singletonList(address), 2);
+
+    List<TxRef> created = new ArrayList<>();
+    UtxoDelta delta = scanner.sync(addresses, created::add);
+
+    assertFalse(delta.isFullScan());
+    assertEquals(2, created.size());
+    assertTrue(created.stream().allMatch(txRef -> txRef.getAddress().equals(address)));
+    assertEquals(Collections.singleton(address), delta.getBalancesByAddress().keySet());
+    assertEquals(6, delta.getBalancesByAddress().get(address).getNumTx());
+    assertTrue(delta.getSpent().isEmpty());
+  }
+
+  @Test
+  public void incrementalSyncReportsSpentOutputs() {
+    List<TxRef> existing = new ArrayList<>();
+    scanner.sync(addresses, existing::add);
+    TxRef spent = existing.get(0);
+    bitcoind.spend(spent.getId(), bitcoind.newAddress());
+    bitcoind.generateToAddress(1, bitcoind.newAddress());
+
+    List<TxRef> created = new ArrayList<>();
+    UtxoDelta delta = scanner.sync(addresses, created::add);
+
+    assertFalse(delta.isFullScan());
+    assertTrue(created.isEmpty());
+    assertEquals(Collections.singleton(spent.getId()), delta.getSpent());
+    assertEquals(3, delta.getBalancesByAddress().get(spent.getAddress()).getNumTx());
+  }
+
+  @Test
+  public void listUnspentWithoutAddressesListsTheWholeWallet() {
+    assertEquals(12, bitcoinClient.listUTXOs(MIN_CONFIRMATION, Collections.emptyList()).size());
+  }
+}
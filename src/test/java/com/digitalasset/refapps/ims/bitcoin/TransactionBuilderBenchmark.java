@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.bitcoin;
+
+import bitcoin.types.BitcoinAddress;
+import bitcoin.types.RawTx;
+import fr.acinq.bitcoin.Crypto;
+import fr.acinq.bitcoin.Satoshi;
+import fr.acinq.bitcoin.Script;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import transfer.transfer.UTXOData;
+
+/**
+ * Compares BTCUtility.createTransactionData with the TransactionBuilder. Run the main method on the
+ * test classpath from the project directory; the GC profiler reports the bytes allocated per
+ * transaction as gc.alloc.rate.norm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransactionBuilderBenchmark {
+  private static final String KEY_FILE = "src/main/resources/secretKeyStore.regtest.txt";
+
+  @Param({"1", "10", "100"})
+  public int inputCount;
+
+  private Map<BitcoinAddress, Crypto.PrivateKey> addressToPrivateKey;
+  private TransactionBuilder transactionBuilder;
+  private List<UTXOData> txInputs;
+  private BitcoinAddress destinationAddress;
+  private BitcoinAddress changeAddress;
+  private Satoshi amount;
+  private final Satoshi fee = new Satoshi(20000);
+
+  @Setup
+  public void setUp() throws IOException {
+    addressToPrivateKey = BTCUtility.loadPrivateKeysFromFile(KEY_FILE);
+    Path index = Files.createTempFile("keys", ".idx");
+    index.toFile().deleteOnExit();
+    KeyStore keyStore = KeyStore.open(Paths.get(KEY_FILE), index, addressToPrivateKey.size());
+    transactionBuilder = new TransactionBuilder(keyStore);
+    List<BitcoinAddress> addresses = new ArrayList<>(addressToPrivateKey.keySet());
+    Random random = new Random(42);
+    txInputs = new ArrayList<>();
+    for (int i = 0; i < inputCount; i++) {
+      BitcoinAddress address = addresses.get(i % addresses.size());
+      String script =
+          Script.write(Script.pay2pkh(addressToPrivateKey.get(address).publicKey().hash160()))
+              .toString();
+      txInputs.add(
+          new TxRef(
+                  address.unpack,
+                  randomTxHash(random),
+                  i % 4,
+                  100 + i,
+                  100_000L,
+                  Optional.empty(),
+                  script)
+              .toUtxoData());
+    }
+    destinationAddress = addresses.get(0);
+    changeAddress = addresses.get(addresses.size() - 1);
+    amount = new Satoshi(inputCount * 100_000L / 2);
+  }
+
+  private static String randomTxHash(Random random) {
+    StringBuilder txHash = new StringBuilder();
+    for (int i = 0; i < 4; i++) {
+      txHash.append(String.format("%016x", random.nextLong()));
+    }
+    return txHash.toString();
+  }
+
+  @Benchmark
+  public RawTx btcUtility() {
+    return BTCUtility.createTransactionData(
+        txInputs, destinationAddress, amount, fee, addressToPrivateKey, changeAddress);
+  }
+
+  @Benchmark
+  public RawTx transactionBuilder() {
+    return transactionBuilder.createTransactionData(
+        txInputs, destinationAddress, amount, fee, changeAddress);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder()
+                .include(TransactionBuilderBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+        .run();
+  }
+}
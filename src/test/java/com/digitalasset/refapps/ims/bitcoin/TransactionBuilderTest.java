@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.bitcoin;
+
+import static org.junit.Assert.assertEquals;
+
+import bitcoin.types.BitcoinAddress;
+import bitcoin.types.RawTx;
+import com.digitalasset.refapps.ims.util.Utility;
+import fr.acinq.bitcoin.BinaryData;
+import fr.acinq.bitcoin.Crypto;
+import fr.acinq.bitcoin.OutPoint;
+import fr.acinq.bitcoin.Satoshi;
+import fr.acinq.bitcoin.Script;
+import fr.acinq.bitcoin.ScriptFlags;
+import fr.acinq.bitcoin.ScriptWitness;
+import fr.acinq.bitcoin.Transaction;
+import fr.acinq.bitcoin.TxIn;
+import fr.acinq.bitcoin.TxOut;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import scala.Predef$;
+import transfer.transfer.UTXOData;
+
+public class TransactionBuilderTest {
+  private static final String KEY_FILE = "src/main/resources/secretKeyStore.regtest.txt";
+  private static final long INPUT_VALUE = 100_000L;
+
+  private Map<BitcoinAddress, Crypto.PrivateKey> addressToPrivateKey;
+  private List<BitcoinAddress> addresses;
+  // the keys of the pay-to-witness-pubkey-hash addresses of the same keys
+  private final Map<String, Crypto.PrivateKey> witnessAddressToPrivateKey = new HashMap<>();
+  private TransactionBuilder transactionBuilder;
+  private final Random random = new Random(42);
+
+  @Before
+  public void setUp() throws IOException {
+    addressToPrivateKey = BTCUtility.loadPrivateKeysFromFile(KEY_FILE);
+    addresses = new ArrayList<>(addressToPrivateKey.keySet());
+    addressToPrivateKey
+        .values()
+        .forEach(key -> witnessAddressToPrivateKey.put(witnessAddress(key), key));
+    transactionBuilder =
+        new TransactionBuilder(
+            address -> {
+              Crypto.PrivateKey key = addressToPrivateKey.get(new BitcoinAddress(address));
+              return Optional.ofNullable(
+                  key != null ? key : witnessAddressToPrivateKey.get(address));
+            });
+  }
+
+  private static String witnessAddress(Crypto.PrivateKey key) {
+    return AddressType.P2WPKH.encode(Network.REGTEST, key.publicKey().hash160());
+  }
+
+  private List<UTXOData> pay2pkhInputs(int count) {
+    List<UTXOData> inputs = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      BitcoinAddress address = addresses.get(i % addresses.size());
+      String script =
+          Script.write(Script.pay2pkh(addressToPrivateKey.get(address).publicKey().hash160()))
+              .toString();
+      inputs.add(
+          new TxRef(
+                  Utility.unpack(address),
+                  randomTxHash(),
+                  i % 3,
+                  100 + i,
+                  INPUT_VALUE,
+                  Optional.empty(),
+                  script)
+              .toUtxoData());
+    }
+    return inputs;
+  }
+
+  private String randomTxHash() {
+    StringBuilder txHash = new StringBuilder();
+    for (int i = 0; i < 4; i++) {
+      txHash.append(String.format("%016x", random.nextLong()));
+    }
+    return txHash.toString();
+  }
+
+  private void assertSameAsBtcUtility(List<UTXOData> inputs, Satoshi amount, Satoshi fee) {
+    BitcoinAddress destination = addresses.get(0);
+    BitcoinAddress change = addresses.get(addresses.size() - 1);
+    RawTx expected =
+        BTCUtility.createTransactionData(
+            inputs, destination, amount, fee, addressToPrivateKey, change);
+    RawTx actual =
+        transactionBuilder.createTransactionData(inputs, destination, amount, fee, change);
+    assertEquals(Utility.unpack(expected), Utility.unpack(actual));
+  }
+
+  @Test
+  public void singleInputWithChangeIsTheSameAsBtcUtility() {
+    assertSameAsBtcUtility(pay2pkhInputs(1), new Satoshi(40_000), new Satoshi(10_000));
+  }
+
+  @Test
+  public void manyInputsWithChangeAreTheSameAsBtcUtility() {
+    assertSameAsBtcUtility(pay2pkhInputs(20), new Satoshi(1_000_000), new Satoshi(20_000));
+  }
+
+  @Test
+  public void inputsWithoutChangeAreTheSameAsBtcUtility() {
+    assertSameAsBtcUtility(
+        pay2pkhInputs(3), new Satoshi(3 * INPUT_VALUE - 5_000), new Satoshi(5_000));
+  }
+
+  @Test
+  public void mixedInputsCorrectlySpendTheirPreviousOutputs() {
+    // a previous transaction paying a legacy and a witness output to each of three keys
+    List<TxOut> previousOutputs = new ArrayList<>();
+    List<String> outputAddresses = new ArrayList<>();
+    for (BitcoinAddress address : addresses.subList(0, 3)) {
+      Crypto.PublicKey publicKey = addressToPrivateKey.get(address).publicKey();
+      previousOutputs.add(
+          new TxOut(new Satoshi(INPUT_VALUE), Script.write(Script.pay2pkh(publicKey))));
+      outputAddresses.add(address.unpack);
+      previousOutputs.add(
+          new TxOut(new Satoshi(INPUT_VALUE), Script.write(Script.pay2wpkh(publicKey))));
+      outputAddresses.add(witnessAddress(addressToPrivateKey.get(address)));
+    }
+    TxIn[] previousInputs = {
+      new TxIn(
+          new OutPoint(BinaryData.apply(randomTxHash()), 0),
+          BinaryData.apply(""),
+          0xFFFFFFFFL,
+          ScriptWitness.empty())
+    };
+    Transaction previousTx =
+        new Transaction(
+            1L,
+            Predef$.MODULE$.wrapRefArray(previousInputs),
+            Predef$.MODULE$.wrapRefArray(previousOutputs.toArray(new TxOut[0])),
+            0L);
+    List<UTXOData> inputs = new ArrayList<>();
+    for (int i = 0; i < previousOutputs.size(); i++) {
+      inputs.add(
+          new TxRef(
+                  outputAddresses.get(i),
+                  previousTx.txid().toString(),
+                  i,
+                  100,
+                  INPUT_VALUE,
+                  Optional.empty(),
+                  previousOutputs.get(i).publicKeyScript().toString())
+              .toUtxoData());
+    }
+
+    RawTx rawTx =
+        transactionBuilder.createTransactionData(
+            inputs,
+            addresses.get(3),
+            new Satoshi(4 * INPUT_VALUE),
+            new Satoshi(10_000),
+            new BitcoinAddress(outputAddresses.get(1)));
+
+    // throws if the signature or witness of an input does not spend its previous output
+    Transaction.correctlySpends(
+        Transaction.read(Utility.unpack(rawTx)),
+        Predef$.MODULE$.wrapRefArray(new Transaction[] {previousTx}),
+        ScriptFlags.STANDARD_SCRIPT_VERIFY_FLAGS());
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.bitcoin;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares filling and probing a UtxoSet with the same on a HashMap from UtxoId to a boxed
+ * fingerprint. Run the main method on the test classpath; the GC profiler reports the bytes
+ * allocated per operation as gc.alloc.rate.norm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UtxoSetBenchmark {
+  @Param({"1000", "100000"})
+  public int utxoCount;
+
+  private String[] txHashes;
+  private long[] fingerprints;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    txHashes = new String[utxoCount];
+    fingerprints = new long[utxoCount];
+    for (int i = 0; i < utxoCount; i++) {
+      StringBuilder txHash = new StringBuilder();
+      for (int j = 0; j < 4; j++) {
+        txHash.append(String.format("%016x", random.nextLong()));
+      }
+      txHashes[i] = txHash.toString();
+      fingerprints[i] = random.nextLong();
+    }
+  }
+
+  @Benchmark
+  public int utxoSet() {
+    UtxoSet utxos = new UtxoSet(utxoCount);
+    for (int i = 0; i < utxoCount; i++) {
+      utxos.put(txHashes[i], i & 3, fingerprints[i]);
+    }
+    int found = 0;
+    for (int i = 0; i < utxoCount; i++) {
+      if (utxos.contains(txHashes[i], i & 3, fingerprints[i])) {
+        found++;
+      }
+    }
+    return found;
+  }
+
+  @Benchmark
+  public int hashMap() {
+    Map<UtxoId, Long> utxos = new HashMap<>(utxoCount * 2);
+    for (int i = 0; i < utxoCount; i++) {
+      utxos.put(new UtxoId(txHashes[i], i & 3), fingerprints[i]);
+    }
+    int found = 0;
+    for (int i = 0; i < utxoCount; i++) {
+      Long fingerprint = utxos.get(new UtxoId(txHashes[i], i & 3));
+      if (fingerprint != null && fingerprint == fingerprints[i]) {
+        found++;
+      }
+    }
+    return found;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder()
+                .include(UtxoSetBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+        .run();
+  }
+}
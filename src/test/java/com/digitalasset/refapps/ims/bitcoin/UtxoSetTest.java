@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.bitcoin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class UtxoSetTest {
+  private static final String PREFIX = "00112233445566778899aabbccddeeff";
+
+  // equal in the first 16 hex digits, which select the slot
+  private static String collidingTxHash(int i) {
+    return PREFIX + String.format("%032x", i);
+  }
+
+  private static String randomTxHash(Random random) {
+    StringBuilder txHash = new StringBuilder();
+    for (int i = 0; i < 4; i++) {
+      txHash.append(String.format("%016x", random.nextLong()));
+    }
+    return txHash.toString();
+  }
+
+  @Test
+  public void collidingOutputsAreKeptApart() {
+    UtxoSet utxos = new UtxoSet(16);
+    for (int i = 0; i < 5; i++) {
+      utxos.put(collidingTxHash(i), 0, i);
+    }
+    utxos.put(collidingTxHash(0), 1, 10);
+
+    assertEquals(6, utxos.size());
+    for (int i = 0; i < 5; i++) {
+      assertTrue(utxos.contains(collidingTxHash(i), 0, i));
+    }
+    assertTrue(utxos.contains(collidingTxHash(0), 1, 10));
+    assertFalse(utxos.contains(collidingTxHash(5), 0));
+    assertFalse(utxos.contains(collidingTxHash(1), 1));
+  }
+
+  @Test
+  public void growsBeyondTheExpectedSize() {
+    Random random = new Random(42);
+    String[] txHashes = new String[1000];
+    UtxoSet utxos = new UtxoSet(1);
+    for (int i = 0; i < txHashes.length; i++) {
+      txHashes[i] = randomTxHash(random);
+      utxos.put(txHashes[i], i % 3, i);
+    }
+
+    assertEquals(txHashes.length, utxos.size());
+    for (int i = 0; i < txHashes.length; i++) {
+      assertTrue(utxos.contains(txHashes[i], i % 3, i));
+      assertFalse(utxos.contains(txHashes[i], i % 3 + 1));
+    }
+  }
+
+  @Test
+  public void containsComparesTheFingerprint() {
+    UtxoSet utxos = new UtxoSet(16);
+    String txHash = collidingTxHash(1);
+    utxos.put(txHash, 2, 123L);
+
+    assertTrue(utxos.contains(txHash, 2));
+    assertTrue(utxos.contains(txHash, 2, 123L));
+    assertFalse(utxos.contains(txHash, 2, 124L));
+  }
+
+  @Test
+  public void putReplacesTheFingerprint() {
+    UtxoSet utxos = new UtxoSet(16);
+    String txHash = collidingTxHash(1);
+    utxos.put(txHash, 2, 123L);
+    utxos.put(txHash, 2, 124L);
+
+    assertEquals(1, utxos.size());
+    assertFalse(utxos.contains(txHash, 2, 123L));
+    assertTrue(utxos.contains(txHash, 2, 124L));
+  }
+
+  @Test
+  public void marksSurviveGrowingAndAreClearedByANewFingerprint() {
+    UtxoSet utxos = new UtxoSet(1);
+    String txHash = collidingTxHash(1);
+    utxos.put(txHash, 0, 123L);
+    utxos.put(txHash, 1, 456L);
+
+    assertFalse(utxos.mark(txHash, 0, 124L));
+    assertFalse(utxos.mark(txHash, 2, 123L));
+    assertTrue(utxos.mark(txHash, 0, 123L));
+    for (int i = 2; i < 100; i++) {
+      utxos.put(collidingTxHash(i), 0, i);
+    }
+
+    assertTrue(utxos.isMarked(txHash, 0, 123L));
+    assertFalse(utxos.isMarked(txHash, 0, 124L));
+    assertFalse(utxos.isMarked(txHash, 1, 456L));
+    utxos.put(txHash, 0, 124L);
+    assertFalse(utxos.isMarked(txHash, 0, 124L));
+  }
+
+  @Test
+  public void upperCaseHashesAreTheSameOutputs() {
+    UtxoSet utxos = new UtxoSet(16);
+    utxos.put(collidingTxHash(10), 0, 1L);
+
+    assertTrue(utxos.contains(collidingTxHash(10).toUpperCase(), 0, 1L));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsInvalidTransactionHashes() {
+    new UtxoSet(16).put("abc", 0, 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsNegativeOutputIndexes() {
+    new UtxoSet(16).put(collidingTxHash(0), -1, 0);
+  }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.digitalasset.refapps.ims.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+
+public class HiddenContractsTest {
+  private static Set<String> set(String... contractIds) {
+    return new HashSet<>(Arrays.asList(contractIds));
+  }
+
+  @Test
+  public void contractPendingInSeveralSubmissionsIsReleasedByTheLastOne() {
+    HiddenContracts hiddenContracts = new HiddenContracts();
+    hiddenContracts.hide(set("a", "b"));
+    hiddenContracts.hide(set("a", "c"));
+    assertEquals(set("a", "b", "c"), hiddenContracts.takeHiding());
+
+    hiddenContracts.release(set("a", "b"));
+    assertEquals(set("b"), hiddenContracts.takeReleased());
+
+    hiddenContracts.release(set("a", "c"));
+    assertEquals(set("a", "c"), hiddenContracts.takeReleased());
+    assertTrue(hiddenContracts.takeHiding().isEmpty());
+  }
+
+  @Test
+  public void contractHiddenAgainBeforeTheBotSawItsReleaseStaysArchived() {
+    HiddenContracts hiddenContracts = new HiddenContracts();
+    hiddenContracts.hide(set("a"));
+    assertEquals(set("a"), hiddenContracts.takeHiding());
+
+    hiddenContracts.release(set("a"));
+    hiddenContracts.hide(set("a"));
+    assertTrue(hiddenContracts.takeReleased().isEmpty());
+    assertTrue(hiddenContracts.takeHiding().isEmpty());
+
+    hiddenContracts.release(set("a"));
+    assertEquals(set("a"), hiddenContracts.takeReleased());
+  }
+
+  @Test
+  public void contractArchivedOnTheLedgerIsNotReleased() {
+    HiddenContracts hiddenContracts = new HiddenContracts();
+    hiddenContracts.hide(set("a"));
+    hiddenContracts.hide(set("a"));
+    hiddenContracts.takeHiding();
+
+    assertTrue(hiddenContracts.archive("a"));
+    assertFalse(hiddenContracts.archive("a"));
+    hiddenContracts.release(set("a"));
+    hiddenContracts.release(set("a"));
+    assertEquals(Collections.emptySet(), hiddenContracts.takeReleased());
+  }
+}